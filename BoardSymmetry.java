@@ -0,0 +1,120 @@
+import java.util.SplittableRandom;
+
+/** The eight symmetries (rotations and reflections) of a square board, and hashing of boards up to symmetry.
+*
+*    A transformation t maps the square (i, j) to another square of the board. The canonical form of a board is its image under the transformation that gives the smallest hash, so boards that are rotations or reflections of each other have the same canonical form and hash.
+*/
+public class BoardSymmetry{
+
+  /** Number of symmetries of a square. */
+  static final int NUM_SYMMETRIES = 8;
+
+  /** Boards with at most this many squares are hashed exactly as base 3 numbers, larger ones with Zobrist hashing. */
+  static final int MAX_EXACT_SQUARES = 39;
+
+  /** The powers of 3 of the exact hashes, indexed by square. The same for every board size, since a board of n*n squares uses the first n*n of them. */
+  private static final long[] POW3 = new long[MAX_EXACT_SQUARES];
+  static{
+    POW3[0] = 1;
+    for(int c = 1; c < POW3.length; c++)
+      POW3[c] = POW3[c-1]*3;
+  }
+
+  /** Random numbers for Zobrist hashing, indexed by square and mark. Grown as needed. */
+  private static long[][] zobrist = new long[0][];
+
+  /** Maps a square under a transformation.
+  * @param t The transformation, between 0 and 7.
+  * @param i The row of the square.
+  * @param j The column of the square.
+  * @param n The dimension of the board.
+  * @return The index i*n+j of the image of the square.
+  */
+  public static int transform(int t, int i, int j, int n){
+    // the reflection i <-> j followed by a rotation by a quarter turn t % 4 times
+    if(t >= 4){ int k = i; i = j; j = k; }
+    for(int r = 0; r < t % 4; r++){ int k = i; i = j; j = n-1-k; }
+    return i*n + j;
+  }
+
+  /** Computes the hash of a board under a transformation without building the transformed board.
+  * @param board The board.
+  * @param t The transformation.
+  * @return The hash of the transformed board.
+  */
+  public static long hash(int[][] board, int t){
+    int n = board.length;
+    long h = 0;
+    if(n*n <= MAX_EXACT_SQUARES){
+      for(int i = 0; i < n; i++)
+        for(int j = 0; j < n; j++)
+          h += board[i][j]*POW3[transform(t, i, j, n)];
+      return h;
+    }
+    long[][] z = zobristTable(n*n);
+    for(int i = 0; i < n; i++)
+      for(int j = 0; j < n; j++)
+        if(board[i][j] != 0)
+          h ^= z[transform(t, i, j, n)][board[i][j]];
+    return h;
+  }
+
+  /** Finds the canonical form of a board.
+  * @param board The board.
+  * @return A pair {hash, t} where hash is the hash of the canonical form and t is the transformation that maps the board to it.
+  */
+  public static long[] canonical(int[][] board){
+    long best = hash(board, 0);
+    int bestT = 0;
+    for(int t = 1; t < NUM_SYMMETRIES; t++){
+      long h = hash(board, t);
+      if(Long.compareUnsigned(h, best) < 0){
+        best = h;
+        bestT = t;
+      }
+    }
+    return new long[]{best, bestT};
+  }
+
+  /** Applies a transformation to a board.
+  * @param board The board.
+  * @param t The transformation.
+  * @return The transformed board.
+  */
+  public static int[][] apply(int[][] board, int t){
+    int n = board.length;
+    int[][] b = new int[n][n];
+    for(int i = 0; i < n; i++)
+      for(int j = 0; j < n; j++){
+        int c = transform(t, i, j, n);
+        b[c / n][c % n] = board[i][j];
+      }
+    return b;
+  }
+
+  /** Maps a vector indexed by the squares of a transformed board back to the squares of the original board.
+  * @param v The vector for the transformed board, such as the output of the network.
+  * @param t The transformation.
+  * @param n The dimension of the board.
+  * @return The vector for the original board.
+  */
+  public static double[] mapBack(double[] v, int t, int n){
+    double[] out = new double[v.length];
+    for(int i = 0; i < n; i++)
+      for(int j = 0; j < n; j++)
+        out[i*n + j] = v[transform(t, i, j, n)];
+    return out;
+  }
+
+  private static synchronized long[][] zobristTable(int squares){
+    if(zobrist.length < squares){
+      SplittableRandom rnd = new SplittableRandom(0x5eed);
+      long[][] z = new long[squares][3];
+      for(int c = 0; c < squares; c++)
+        for(int v = 1; v < 3; v++)
+          z[c][v] = rnd.nextLong();
+      zobrist = z;
+    }
+    return zobrist;
+  }
+}
@@ -0,0 +1,280 @@
+import java.util.Arrays;
+
+/** Keeps track of the moves worth considering on a large board: the empty squares within a given distance of the marks, and the threats that a mark in each of them would make.
+*
+*    A threat is graded by the longest line of marks it makes, generalized from five in a row to any target length: WIN completes a row, FOUR makes a line one short of a row with one open end and OPEN_FOUR with both ends open (or two FOURs at once, which cannot both be blocked), and OPEN_THREE makes a line two short with both ends open. Placing or removing a mark only changes the threats of the squares on the four lines through it, so the table is updated for those squares only.
+*
+*    Like NNAccumulator, the state follows a board through play() and undo() during a search, or through sync() between moves. Used for move generation and ordering by MCTS and ValueSearch, and for masking the network moves of a Player.
+*/
+public class CandidateMoves{
+
+  /** The distance from the marks within which the empty squares are candidates, unless given otherwise. */
+  static final int DEFAULT_RADIUS = 2;
+
+  /** Threat levels. */
+  static final byte NONE = 0, OPEN_THREE = 1, FOUR = 2, OPEN_FOUR = 3, WIN = 4;
+
+  /** Directions of the lines through a square. */
+  static final int[][] DIRECTIONS = {{1, 0}, {0, 1}, {1, 1}, {1, -1}};
+
+  /** If more than this many squares have changed since the last sync(), the state is recomputed from scratch. */
+  static final int MAX_INCREMENTAL_CHANGES = 8;
+
+  int dim, inARow, radius;
+  /** The board the state corresponds to, and the number of marks on it. */
+  int[][] board;
+  int marks;
+
+  /** Number of marks within the radius of each square. */
+  private int[] near;
+  /** The candidate squares in no particular order, and the position of each square in the list or -1. */
+  private int[] list, index;
+  private int size;
+  /** Threat level of a mark of player 1 and 2 in each empty square. */
+  private byte[][] threat;
+
+  /** Stack of the moves made with play(), for undo(). */
+  private int[] undoSquare;
+  private int undoSize = 0;
+
+  /** Constructor. The state starts from an empty board.
+  * @param dimension The dimension of the game board.
+  * @param targetLength How many in a row a player needs to win.
+  * @param r The distance from the marks within which the empty squares are candidates.
+  */
+  public CandidateMoves(int dimension, int targetLength, int r){
+    dim = dimension;
+    inARow = targetLength;
+    radius = r;
+    undoSquare = new int[dim*dim];
+    reset(new int[dim][dim]);
+  }
+
+  /** Recomputes the state from scratch for a board.
+  * @param b The board. Copied.
+  */
+  public void reset(int[][] b){
+    board = new int[dim][dim];
+    near = new int[dim*dim];
+    list = new int[dim*dim];
+    index = new int[dim*dim];
+    Arrays.fill(index, -1);
+    size = 0;
+    marks = 0;
+    threat = new byte[2][dim*dim];
+    undoSize = 0;
+    for(int i = 0; i < dim; i++)
+      for(int j = 0; j < dim; j++)
+        if(b[i][j] != 0)
+          set(i, j, b[i][j]);
+  }
+
+  /** Makes a move.
+  * @param i The row of the square.
+  * @param j The column of the square.
+  * @param mark The mark placed in the square.
+  */
+  public void play(int i, int j, int mark){
+    undoSquare[undoSize++] = i*dim + j;
+    set(i, j, mark);
+  }
+
+  /** Takes back the latest move made with play(). */
+  public void undo(){
+    undoSize--;
+    set(undoSquare[undoSize] / dim, undoSquare[undoSize] % dim, 0);
+  }
+
+  /** Brings the state up to date with a board. Only the squares that differ from the previous board are updated, unless there are many of them.
+  * @param b The board.
+  */
+  public void sync(int[][] b){
+    int changes = 0;
+    for(int i = 0; i < dim; i++)
+      for(int j = 0; j < dim; j++)
+        if(b[i][j] != board[i][j])
+          changes++;
+    if(changes > MAX_INCREMENTAL_CHANGES){
+      reset(b);
+      return;
+    }
+    for(int i = 0; i < dim; i++)
+      for(int j = 0; j < dim; j++)
+        if(b[i][j] != board[i][j]){
+          // a mark is replaced in two steps so that the counts stay consistent
+          if(board[i][j] != 0)
+            set(i, j, 0);
+          if(b[i][j] != 0)
+            set(i, j, b[i][j]);
+        }
+    undoSize = 0;
+  }
+
+  /** @return True if the square is empty and within the radius of a mark. */
+  public boolean isCandidate(int sq){
+    return index[sq] >= 0;
+  }
+
+  /** @return The threat level of a mark of a player in a square, NONE if the square is taken. */
+  public int threat(int pl, int sq){
+    return threat[pl-1][sq];
+  }
+
+  /** Generates the moves of a player in order of preference. If the player can win, only the winning move is returned, and if the opponent threatens to win, only the squares that block it. Otherwise the candidates are ordered by the threats they make, own threats first, and by the number of marks around them. On an empty board the only candidate is the center.
+  * @param toMove The player to move.
+  * @return The squares i*dim+j of the moves.
+  */
+  public int[] moves(int toMove){
+    if(marks == 0)
+      return new int[]{(dim/2)*dim + dim/2};
+    if(size == 0){
+      // the marks fill their surroundings, fall back to every empty square
+      int[] m = new int[dim*dim - marks];
+      int n = 0;
+      for(int c = 0; c < dim*dim; c++)
+        if(board[c / dim][c % dim] == 0)
+          m[n++] = c;
+      return m;
+    }
+    int[] f = forced(toMove);
+    if(f != null)
+      return f;
+    int own = toMove - 1, opp = 2 - toMove;
+
+    // sort by score, highest first, with the square in the low bits
+    long[] keys = new long[size];
+    for(int k = 0; k < size; k++){
+      int sq = list[k];
+      long score = (2*threat[own][sq] + threat[opp][sq])*(dim*dim + 1) + near[sq];
+      keys[k] = -((score << 32) | (dim*dim - 1 - sq));
+    }
+    Arrays.sort(keys);
+    int[] m = new int[size];
+    for(int k = 0; k < size; k++)
+      m[k] = dim*dim - 1 - (int) ((-keys[k]) & 0xffffffffL);
+    return m;
+  }
+
+  /** Finds the moves a player is forced to make: the winning move if the player can win, otherwise the squares that block the wins of the opponent.
+  * @param toMove The player to move.
+  * @return The squares i*dim+j of the moves, or null if the player is free to move anywhere.
+  */
+  public int[] forced(int toMove){
+    int own = toMove - 1, opp = 2 - toMove;
+    int win = -1;
+    for(int k = 0; k < size; k++)
+      if(threat[own][list[k]] == WIN && (win < 0 || list[k] < win))
+        win = list[k];
+    if(win >= 0)
+      return new int[]{win};
+    int blocks = 0;
+    for(int k = 0; k < size; k++)
+      if(threat[opp][list[k]] == WIN)
+        blocks++;
+    if(blocks > 0){
+      int[] m = new int[blocks];
+      blocks = 0;
+      for(int k = 0; k < size; k++)
+        if(threat[opp][list[k]] == WIN)
+          m[blocks++] = list[k];
+      Arrays.sort(m);
+      return m;
+    }
+    return null;
+  }
+
+  /** Restricts a distribution over the squares to the moves given by moves() and normalizes it. If the distribution has no weight on those moves, they are made equally likely.
+  * @param output The distribution, such as the output of the network. Modified in place.
+  * @param toMove The player to move.
+  */
+  public void mask(double[] output, int toMove){
+    int[] m = moves(toMove);
+    double[] kept = new double[m.length];
+    double d = 0.0;
+    for(int k = 0; k < m.length; k++){
+      kept[k] = output[m[k]];
+      d += kept[k];
+    }
+    Arrays.fill(output, 0.0);
+    for(int k = 0; k < m.length; k++)
+      output[m[k]] = (d > 0.0) ? kept[k]/d : 1.0/m.length;
+  }
+
+  /** Changes the mark of a square, either placing a mark in an empty square or emptying it, and updates the candidates and the threats around it. */
+  private void set(int i, int j, int mark){
+    int sq = i*dim + j;
+    int delta = (mark != 0) ? 1 : -1;
+    board[i][j] = mark;
+    marks += delta;
+
+    for(int x = Math.max(0, i - radius); x <= Math.min(dim-1, i + radius); x++)
+      for(int y = Math.max(0, j - radius); y <= Math.min(dim-1, j + radius); y++){
+        int c = x*dim + y;
+        near[c] += delta;
+        updateCandidate(c);
+      }
+    updateCandidate(sq);
+
+    // the threats can change only on the lines through the square, up to a row's length away
+    updateThreats(i, j);
+    for(int[] d : DIRECTIONS)
+      for(int t = 1; t <= inARow; t++)
+        for(int s = -1; s <= 1; s += 2){
+          int x = i + s*t*d[0], y = j + s*t*d[1];
+          if(x >= 0 && x < dim && y >= 0 && y < dim)
+            updateThreats(x, y);
+        }
+  }
+
+  private void updateCandidate(int c){
+    boolean in = board[c / dim][c % dim] == 0 && near[c] > 0;
+    if(in && index[c] < 0){
+      index[c] = size;
+      list[size++] = c;
+    } else if(!in && index[c] >= 0){
+      int last = list[--size];
+      list[index[c]] = last;
+      index[last] = index[c];
+      index[c] = -1;
+    }
+  }
+
+  private void updateThreats(int i, int j){
+    for(int pl = 1; pl <= 2; pl++)
+      threat[pl-1][i*dim + j] = (board[i][j] == 0) ? computeThreat(i, j, pl) : NONE;
+  }
+
+  /** Grades the threat of a mark of a player in an empty square from the lines of the player's marks through it. */
+  private byte computeThreat(int i, int j, int pl){
+    int best = NONE, fours = 0, threes = 0;
+    for(int[] d : DIRECTIONS){
+      int run = 1, open = 0;
+      for(int s = -1; s <= 1; s += 2){
+        int x = i + s*d[0], y = j + s*d[1];
+        while(x >= 0 && x < dim && y >= 0 && y < dim && board[x][y] == pl){
+          run++;
+          x += s*d[0];
+          y += s*d[1];
+        }
+        if(x >= 0 && x < dim && y >= 0 && y < dim && board[x][y] == 0)
+          open++;
+      }
+      int level = NONE;
+      if(run >= inARow)
+        level = WIN;
+      else if(run == inARow-1 && open > 0)
+        level = (open == 2) ? OPEN_FOUR : FOUR;
+      else if(run == inARow-2 && run >= 2 && open == 2)
+        level = OPEN_THREE;
+      if(level == FOUR || level == OPEN_FOUR)
+        fours++;
+      if(level == OPEN_THREE)
+        threes++;
+      best = Math.max(best, level);
+    }
+    // two threats of winning on the next move cannot both be blocked
+    if(best < OPEN_FOUR && (fours >= 2 || (fours == 1 && threes >= 1)))
+      best = OPEN_FOUR;
+    return (byte) best;
+  }
+}
@@ -1,4 +1,5 @@
 import java.util.HashMap;
+import java.io.*;
 /** Gradient class. 
 * Encapsulates information needed to store the gradients. More convenient than dealing with two hashmaps of double arrays without encapsulation.
 */
@@ -12,11 +13,68 @@ public class Gradient{
   */
   public void addToGradient(Gradient g, double learningDirection){
     for(Integer l : g.wGrad.keySet()){
-      for(int i = 0; i < wGrad.get(l).length; i++){
-        for(int j = 0; j < wGrad.get(l)[i].length; j++)
-          wGrad.get(l)[i][j] += g.wGrad.get(l)[i][j]*learningDirection;
-        bGrad.get(l)[i] += g.bGrad.get(l)[i]*learningDirection;
+      // look the layers up once, not once per weight
+      double[][] w = wGrad.get(l), gw = g.wGrad.get(l);
+      double[] b = bGrad.get(l), gb = g.bGrad.get(l);
+      for(int i = 0; i < w.length; i++){
+        double[] wi = w[i], gwi = gw[i];
+        for(int j = 0; j < wi.length; j++)
+          wi[j] += gwi[j]*learningDirection;
+        b[i] += gb[i]*learningDirection;
       }
     }
   }
+
+  /** @return The Euclidean norm of the gradient over all the weights and biases. */
+  public double norm(){
+    double s = 0.0;
+    for(Integer l : wGrad.keySet()){
+      for(double[] w : wGrad.get(l))
+        for(double x : w)
+          s += x*x;
+      for(double x : bGrad.get(l))
+        s += x*x;
+    }
+    return Math.sqrt(s);
+  }
+
+  /** Writes the gradient to a binary stream. Used for sending the gradient between processes, @see ParameterServer
+  * @param out The stream to write into.
+  */
+  public void writeTo(DataOutputStream out) throws IOException{
+    out.writeInt(wGrad.size());
+    for(Integer l : wGrad.keySet()){
+      double[][] w = wGrad.get(l);
+      out.writeInt(l);
+      out.writeInt(w.length);
+      out.writeInt(w[0].length);
+      for(int i = 0; i < w.length; i++){
+        for(int j = 0; j < w[i].length; j++)
+          out.writeDouble(w[i][j]);
+        out.writeDouble(bGrad.get(l)[i]);
+      }
+    }
+  }
+
+  /** Reads a gradient from a binary stream written by writeTo().
+  * @param in The stream to read from.
+  * @return The gradient that was read.
+  */
+  public static Gradient readFrom(DataInputStream in) throws IOException{
+    Gradient g = new Gradient();
+    int n = in.readInt();
+    for(int k = 0; k < n; k++){
+      int l = in.readInt();
+      double[][] w = new double[in.readInt()][in.readInt()];
+      double[] b = new double[w.length];
+      for(int i = 0; i < w.length; i++){
+        for(int j = 0; j < w[i].length; j++)
+          w[i][j] = in.readDouble();
+        b[i] = in.readDouble();
+      }
+      g.wGrad.put(l, w);
+      g.bGrad.put(l, b);
+    }
+    return g;
+  }
 }
\ No newline at end of file
@@ -0,0 +1,86 @@
+import java.io.*;
+import java.nio.channels.*;
+import java.util.ArrayList;
+
+/** A worker process for distributed training. Plays batches of games with the latest network from a parameter server, computes the gradient of each batch and sends it to the server, @see ParameterServer
+*/
+public class GradientWorker{
+
+  /** Usage: GradientWorker address dim inARow player1 player2 batchSize numBatches [positiveMod negativeMod drawMod]
+  *
+  * The player types are as in @see Player, and at least one of them should be "Neural network".
+  */
+  public static void main(String[] args) throws IOException{
+    double positiveMod = 1.0, negativeMod = -1.0, drawMod = .5;
+    if(args.length > 7){
+      positiveMod = Double.parseDouble(args[7]);
+      negativeMod = Double.parseDouble(args[8]);
+      drawMod = Double.parseDouble(args[9]);
+    }
+    TicTacToe game = new TicTacToe(Integer.parseInt(args[1]), Integer.parseInt(args[2]), args[3], args[4]);
+    run(args[0], game, Integer.parseInt(args[5]), Integer.parseInt(args[6]), positiveMod, negativeMod, drawMod);
+  }
+
+  /** Connects to the server and trains for a given number of batches.
+  *@param address The address of the server, @see ParameterServer#parseAddress()
+  *@param game The TicTacToe instance that contains the game parameters, including the player types.
+  *@param batchSize The number of games played for each gradient.
+  *@param numBatches How many gradients are sent before leaving.
+  *@param positiveMod The modifier that multiplies the gradient when the outcome of the game was positive.
+  *@param negativeMod The modifier that multiplies the gradient when the outcome of the game was negative.
+  *@param drawMod The modifier that multiplies the gradient when the outcome of the game was a draw.
+  */
+  public static void run(String address, TicTacToe game, int batchSize, int numBatches, double positiveMod, double negativeMod, double drawMod) throws IOException{
+    SocketChannel ch = ParameterServer.connect(address);
+    DataInputStream in = new DataInputStream(new BufferedInputStream(Channels.newInputStream(ch)));
+    DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Channels.newOutputStream(ch)));
+
+    out.writeByte(ParameterServer.HELLO);
+    out.flush();
+    int id = in.readInt();
+    int version = in.readInt();
+
+    // the players share the network with the worker, so reading new weights updates the players as well
+    NeuralNetwork nn = new NeuralNetwork(new int[] {1, 1});
+    nn.readFrom(in);
+    if(game.player1.isNN())
+      game.player1.nn = nn;
+    if(game.player2.isNN())
+      game.player2.nn = nn;
+
+    int rejected = 0;
+    for(int bCounter = 0; bCounter < numBatches; bCounter++){
+      ArrayList<GameRecord> gameRecords = NNTrainer.playBatch(game, batchSize, drawMod);
+
+      Gradient grad = nn.initializeGradient();
+      double bSize = NNTrainer.accumulateGradient(nn, gameRecords, grad, game.board.length, positiveMod, negativeMod, drawMod);
+
+      int p1Wins = 0, p2Wins = 0;
+      for(GameRecord g : gameRecords){
+        if(g.outcome == 1)
+          p1Wins++;
+        else if(g.outcome == 2)
+          p2Wins++;
+      }
+
+      out.writeByte(ParameterServer.GRADIENT);
+      out.writeInt(version);
+      out.writeDouble(bSize);
+      grad.writeTo(out);
+      out.writeInt(p1Wins);
+      out.writeInt(p2Wins);
+      out.writeInt(gameRecords.size());
+      out.flush();
+
+      if(in.readByte() == ParameterServer.REJECTED)
+        rejected++;
+      version = in.readInt();
+      nn.readFrom(in);
+    }
+
+    out.writeByte(ParameterServer.BYE);
+    out.flush();
+    ch.close();
+    System.out.println("Worker " + id + " done, " + rejected + " stale gradients rejected.");
+  }
+}
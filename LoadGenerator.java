@@ -0,0 +1,102 @@
+import java.io.*;
+import java.nio.channels.*;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/** A load generator for NNServer. Opens a number of concurrent sessions, each of which plays games against the server with random moves, and reports the throughput and the counters of the server.
+*/
+public class LoadGenerator{
+
+  /** Usage: LoadGenerator address sessions gamesPerSession dim */
+  public static void main(String[] args) throws Exception{
+    String address = args[0];
+    int sessions = Integer.parseInt(args[1]);
+    int games = Integer.parseInt(args[2]);
+    int dim = Integer.parseInt(args[3]);
+
+    LongAdder moves = new LongAdder();
+    int[] outcomes = new int[3];
+    AtomicInteger failed = new AtomicInteger();
+
+    long start = System.nanoTime();
+    Thread[] threads = new Thread[sessions];
+    for(int k = 0; k < sessions; k++){
+      int side = k % 2 + 1;
+      threads[k] = new Thread(() -> {
+        try{
+          int[] o = play(address, games, dim, side, moves);
+          synchronized(outcomes){
+            for(int i = 0; i < 3; i++)
+              outcomes[i] += o[i];
+          }
+        } catch(IOException e){
+          failed.incrementAndGet();
+        }
+      });
+      threads[k].start();
+    }
+    for(Thread t : threads)
+      t.join();
+    double secs = (System.nanoTime() - start)/1e9;
+
+    System.out.println("Sessions: " + sessions + ", failed: " + failed.get() + ", client wins: " + outcomes[1] + ", draws: " + outcomes[0] + ", server wins: " + outcomes[2]);
+    System.out.format("%.1f games/s, %.1f server moves/s%n", sessions*games/secs, moves.sum()/secs);
+
+    try(SocketChannel ch = ParameterServer.connect(address)){
+      BufferedReader in = new BufferedReader(new InputStreamReader(Channels.newInputStream(ch), StandardCharsets.UTF_8));
+      PrintWriter out = new PrintWriter(new OutputStreamWriter(Channels.newOutputStream(ch), StandardCharsets.UTF_8), true);
+      out.println("STATS");
+      System.out.println("Server " + in.readLine());
+      out.println("QUIT");
+    }
+  }
+
+  /** Plays games in one session with random moves.
+  * @param address The address of the server.
+  * @param games The number of games to play.
+  * @param dim The dimension of the game board.
+  * @param side The player number of the client.
+  * @param moves Counter of the server moves.
+  * @return Number of draws, client wins and server wins.
+  */
+  private static int[] play(String address, int games, int dim, int side, LongAdder moves) throws IOException{
+    int[] outcomes = new int[3];
+    try(SocketChannel ch = ParameterServer.connect(address)){
+      BufferedReader in = new BufferedReader(new InputStreamReader(Channels.newInputStream(ch), StandardCharsets.UTF_8));
+      PrintWriter out = new PrintWriter(new OutputStreamWriter(Channels.newOutputStream(ch), StandardCharsets.UTF_8), true);
+
+      for(int g = 0; g < games; g++){
+        int[][] board = new int[dim][dim];
+        out.println("NEW " + side);
+        String reply = (side == 2) ? in.readLine() : null;
+        while(true){
+          if(reply != null){
+            String[] r = reply.split(" ");
+            if(r[0].equals("MOVE")){
+              board[Integer.parseInt(r[1])][Integer.parseInt(r[2])] = side % 2 + 1;
+              moves.increment();
+            }
+            int e = reply.indexOf("END");
+            if(e >= 0){
+              int o = Integer.parseInt(reply.substring(e+4).trim());
+              outcomes[(o == 0) ? 0 : (o == side) ? 1 : 2]++;
+              break;
+            }
+          }
+          int x, y;
+          do{
+            x = ThreadLocalRandom.current().nextInt(dim);
+            y = ThreadLocalRandom.current().nextInt(dim);
+          } while(board[x][y] != 0);
+          board[x][y] = side;
+          out.println("MOVE " + x + " " + y);
+          reply = in.readLine();
+        }
+      }
+      out.println("QUIT");
+    }
+    return outcomes;
+  }
+}
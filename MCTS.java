@@ -0,0 +1,343 @@
+import java.util.Arrays;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/** Monte Carlo tree search with neural network priors (PUCT), used by the "MCTS" player.
+*
+*    Each playout walks down the tree choosing the child that maximizes Q + C_PUCT*P*sqrt(N)/(1+n), where Q is the mean result of the child, P its prior probability given by the network, N the visits of the parent and n the visits of the child. The leaf is expanded with the network priors of its moves, or of its candidate moves on large boards, and its value is estimated with a random game played to the end. Without a network the priors are uniform.
+*
+*    The tree is kept in primitive arrays. Several threads run playouts in parallel; the tree is only locked while walking and updating it, and a virtual loss is added along the path of a playout in progress so that the other threads explore elsewhere. After a move the subtree of the move actually played is kept for the next search.
+*/
+public class MCTS{
+
+  /** Exploration constant of the PUCT formula. */
+  static final double C_PUCT = 1.5;
+  /** Number of lost visits added to the path of a playout in progress. */
+  static final int VIRTUAL_LOSS = 1;
+
+  /** States of a node. A new node has not been checked for the end of the game yet. */
+  static final byte NEW = 0, LEAF = 1, EXPANDING = 2, EXPANDED = 3, WIN = 4, DRAW = 5;
+
+  int dim, inARow;
+  /** Budget of a search. The search stops when either the playouts or the time run out. */
+  int maxPlayouts;
+  long maxMillis;
+  int numThreads;
+
+  /** If positive, a leaf is expanded with the candidate moves within this distance of the marks only, @see CandidateMoves. 0 expands every empty square. */
+  int radius = 0;
+
+  /** The network giving the priors, or null for uniform priors. */
+  NeuralNetwork nn = null;
+  private int nnVersion;
+
+  /** The node pool, allocated on the first move. The children of a node are stored consecutively starting from firstChild. The value of a node is from the point of view of the player who made the move leading to it. */
+  int capacity;
+  int[] firstChild, numChildren, square, visits;
+  double[] valueSum, prior;
+  byte[] state;
+  int size = 0;
+
+  /** The root of the tree and the board at the root. */
+  int root = -1;
+  int[][] rootBoard;
+  /** The player to move at the root. */
+  int rootToMove;
+
+  private ExecutorService pool = null;
+
+  /** Constructor.
+  * @param dimension The dimension of the game board.
+  * @param targetLength How many in a row a player needs to win.
+  * @param playouts The largest number of playouts per move.
+  * @param millis The largest time spent per move in milliseconds.
+  * @param threads The number of threads running playouts.
+  * @param nodes The size of the node pool.
+  */
+  public MCTS(int dimension, int targetLength, int playouts, long millis, int threads, int nodes){
+    dim = dimension;
+    inARow = targetLength;
+    maxPlayouts = playouts;
+    maxMillis = millis;
+    numThreads = threads;
+    capacity = nodes;
+  }
+
+  /** Searches for a move.
+  * @param board The state of the board before the move.
+  * @param network The network giving the priors, or null for uniform priors.
+  * @return Pair of integers denoting the coordinates of the move.
+  */
+  public int[] move(int[][] board, NeuralNetwork network){
+    if(network != nn || (nn != null && nn.version != nnVersion)){
+      nn = network;
+      nnVersion = (nn != null) ? nn.version : 0;
+      root = -1;
+    }
+    if(firstChild == null){
+      firstChild = new int[capacity];
+      numChildren = new int[capacity];
+      square = new int[capacity];
+      visits = new int[capacity];
+      valueSum = new double[capacity];
+      prior = new double[capacity];
+      state = new byte[capacity];
+    }
+    advanceRoot(board);
+
+    AtomicInteger playouts = new AtomicInteger();
+    long deadline = System.nanoTime() + maxMillis*1000000;
+    if(pool == null)
+      pool = Executors.newFixedThreadPool(numThreads, r -> { Thread t = new Thread(r, "MCTS"); t.setDaemon(true); return t; });
+
+    Future<?>[] tasks = new Future<?>[numThreads];
+    for(int k = 0; k < numThreads; k++)
+      tasks[k] = pool.submit(() -> {
+        int[][] b = new int[dim][dim];
+        int[] path = new int[dim*dim + 1];
+        NNAccumulator acc = (nn != null && nn.supportsIncremental()) ? new NNAccumulator(nn, dim) : null;
+        CandidateMoves cm = (radius > 0) ? new CandidateMoves(dim, inARow, radius) : null;
+        while(playouts.getAndIncrement() < maxPlayouts && System.nanoTime() < deadline)
+          playout(b, path, acc, cm);
+      });
+    for(Future<?> f : tasks){
+      try{ f.get(); } catch(Exception e){ throw new RuntimeException(e); }
+    }
+    // make sure the root has been expanded even if the budget ran out right away
+    if(state[root] != EXPANDED)
+      playout(new int[dim][dim], new int[dim*dim + 1], null, (radius > 0) ? new CandidateMoves(dim, inARow, radius) : null);
+
+    // play the most visited move and keep its subtree
+    int best = firstChild[root];
+    for(int c = firstChild[root]; c < firstChild[root] + numChildren[root]; c++)
+      if(visits[c] > visits[best])
+        best = c;
+    int[] m = new int[]{square[best] / dim, square[best] % dim};
+    rootBoard[m[0]][m[1]] = rootToMove;
+    rootToMove = 3 - rootToMove;
+    root = best;
+    return m;
+  }
+
+  /** Moves the root to the node of the given board if it is a child of the current root, otherwise starts a new tree.
+  * @param board The board.
+  */
+  private void advanceRoot(int[][] board){
+    int diff = -1, changes = 0;
+    if(root >= 0)
+      for(int i = 0; i < dim; i++)
+        for(int j = 0; j < dim; j++)
+          if(board[i][j] != rootBoard[i][j]){
+            changes++;
+            diff = i*dim + j;
+          }
+
+    int next = -1;
+    if(root >= 0 && changes == 1 && state[root] == EXPANDED && rootBoard[diff / dim][diff % dim] == 0 && size < capacity/2)
+      for(int c = firstChild[root]; c < firstChild[root] + numChildren[root]; c++)
+        if(square[c] == diff)
+          next = c;
+
+    if(next >= 0){
+      root = next;
+      rootBoard[diff / dim][diff % dim] = rootToMove;
+      rootToMove = 3 - rootToMove;
+    } else {
+      // the nodes of the old tree are simply abandoned
+      size = 0;
+      root = newNode(-1);
+      rootBoard = new int[dim][dim];
+      int marks = 0;
+      for(int i = 0; i < dim; i++)
+        for(int j = 0; j < dim; j++){
+          rootBoard[i][j] = board[i][j];
+          if(board[i][j] != 0)
+            marks++;
+        }
+      rootToMove = marks % 2 + 1;
+    }
+    if(state[root] == NEW)
+      state[root] = LEAF;
+  }
+
+  private int newNode(int sq){
+    int n = size++;
+    firstChild[n] = -1;
+    numChildren[n] = 0;
+    square[n] = sq;
+    visits[n] = 0;
+    valueSum[n] = 0.0;
+    prior[n] = 0.0;
+    state[n] = NEW;
+    return n;
+  }
+
+  /** Runs one playout.
+  * @param b Scratch board of the thread.
+  * @param path Scratch array of the thread for the nodes on the path.
+  * @param acc The first layer accumulator of the thread, or null without a network.
+  * @param cm The candidate moves of the thread, or null if every empty square is expanded.
+  */
+  private void playout(int[][] b, int[] path, NNAccumulator acc, CandidateMoves cm){
+    int len = 0, node, toMove;
+    byte leafState;
+    boolean expand;
+
+    synchronized(this){
+      for(int i = 0; i < dim; i++)
+        System.arraycopy( rootBoard[i], 0, b[i], 0, dim );
+      toMove = rootToMove;
+      node = root;
+      path[len++] = node;
+
+      while(state[node] == EXPANDED){
+        node = select(node);
+        b[square[node] / dim][square[node] % dim] = toMove;
+        toMove = 3 - toMove;
+        path[len++] = node;
+        visits[node] += VIRTUAL_LOSS;
+        valueSum[node] -= VIRTUAL_LOSS;
+
+        // check the end of the game the first time a node is reached
+        if(state[node] == NEW){
+          int r = TicTacToe.checkVictory(new int[]{square[node] / dim, square[node] % dim}, inARow, b);
+          state[node] = (r == 1) ? WIN : (r == 0) ? DRAW : LEAF;
+        }
+      }
+      leafState = state[node];
+      expand = leafState == LEAF;
+      if(expand)
+        state[node] = EXPANDING;
+    }
+
+    int winner;
+    int[] empty = null;
+    double[] p = null;
+    if(leafState == WIN)
+      winner = 3 - toMove;
+    else if(leafState == DRAW)
+      winner = 0;
+    else {
+      if(expand){
+        if(cm != null){
+          cm.sync(b);
+          empty = cm.moves(toMove);
+        } else {
+          int n = 0;
+          empty = new int[dim*dim];
+          for(int i = 0; i < dim; i++)
+            for(int j = 0; j < dim; j++)
+              if(b[i][j] == 0)
+                empty[n++] = i*dim + j;
+          empty = Arrays.copyOf(empty, n);
+        }
+        p = priors(b, path, len, acc);
+        // the priors of the expanded moves are normalized, they may be a subset of the legal moves
+        if(p != null && cm != null){
+          double d = 0.0;
+          for(int sq : empty)
+            d += p[sq];
+          for(int sq : empty)
+            p[sq] = (d > 0.0) ? p[sq]/d : 1.0/empty.length;
+        }
+      }
+      winner = rollout(b, toMove);
+    }
+
+    synchronized(this){
+      if(expand){
+        if(size + empty.length <= capacity){
+          firstChild[node] = size;
+          numChildren[node] = empty.length;
+          for(int k = 0; k < empty.length; k++){
+            int c = newNode(empty[k]);
+            prior[c] = (p != null) ? p[empty[k]] : 1.0/empty.length;
+          }
+          state[node] = EXPANDED;
+        } else
+          state[node] = LEAF;
+      }
+
+      // the player who made the move leading to the root is the opponent of the player to move at the root
+      int mover = 3 - rootToMove;
+      visits[root]++;
+      for(int i = 1; i < len; i++){
+        mover = 3 - mover;
+        double v = (winner == 0) ? 0.0 : (winner == mover) ? 1.0 : -1.0;
+        visits[path[i]] += 1 - VIRTUAL_LOSS;
+        valueSum[path[i]] += v + VIRTUAL_LOSS;
+      }
+    }
+  }
+
+  /** Chooses the child of a node with the PUCT formula. */
+  private int select(int node){
+    double sqrtN = Math.sqrt(Math.max(1, visits[node]));
+    int best = -1;
+    double bestVal = Double.NEGATIVE_INFINITY;
+    for(int c = firstChild[node]; c < firstChild[node] + numChildren[node]; c++){
+      double q = (visits[c] > 0) ? valueSum[c]/visits[c] : 0.0;
+      double u = q + C_PUCT*prior[c]*sqrtN/(1 + visits[c]);
+      if(u > bestVal){
+        bestVal = u;
+        best = c;
+      }
+    }
+    return best;
+  }
+
+  /** Computes the network priors of the moves at the end of a path. The moves of the path are played into the accumulator and taken back afterwards, or the network is evaluated directly on the board if there is no accumulator.
+  * @return The priors conditioned on legal moves, or null without a network.
+  */
+  private double[] priors(int[][] b, int[] path, int len, NNAccumulator acc){
+    if(nn == null)
+      return null;
+    if(acc == null){
+      double[] p = nn.feedForward(NeuralNetwork.formatInput(b));
+      Player.maskIllegal(p, b);
+      return p;
+    }
+    acc.sync(rootBoard);
+    int mark = rootToMove;
+    for(int i = 1; i < len; i++){
+      acc.play(square[path[i]] / dim, square[path[i]] % dim, mark);
+      mark = 3 - mark;
+    }
+    double[] p = acc.feedForward();
+    for(int i = 1; i < len; i++)
+      acc.undo();
+    Player.maskIllegal(p, b);
+    return p;
+  }
+
+  /** Plays random moves until the end of the game.
+  * @param b The board, modified.
+  * @param toMove The player to move.
+  * @return The winner, or 0 for a draw.
+  */
+  private int rollout(int[][] b, int toMove){
+    int[] empty = new int[dim*dim];
+    int n = 0;
+    for(int i = 0; i < dim; i++)
+      for(int j = 0; j < dim; j++)
+        if(b[i][j] == 0)
+          empty[n++] = i*dim + j;
+
+    while(n > 0){
+      int k = ThreadLocalRandom.current().nextInt(n);
+      int sq = empty[k];
+      empty[k] = empty[--n];
+      b[sq / dim][sq % dim] = toMove;
+      int r = TicTacToe.checkVictory(new int[]{sq / dim, sq % dim}, inARow, b);
+      if(r == 1)
+        return toMove;
+      if(r == 0)
+        return 0;
+      toMove = 3 - toMove;
+    }
+    return 0;
+  }
+}
@@ -0,0 +1,161 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/** Evaluates neural network requests from many threads in batches. Requests are queued and a single thread collects them until either the batch is full or the oldest request has waited for the maximum delay, and then evaluates the whole batch with one call to NeuralNetwork.feedForwardBatch().
+*
+*    The network can be swapped at any time, a batch is always evaluated with the network that was current when the batch started. Latencies of the requests are kept for computing percentiles.
+*/
+public class MoveBatcher{
+
+  /** A single request waiting to be evaluated. */
+  private static class Request{
+    double[] input;
+    long enqueued;
+    CompletableFuture<double[]> result = new CompletableFuture<double[]>();
+  }
+
+  /** The network used for the evaluations. */
+  private volatile NeuralNetwork nn;
+  /** The largest number of requests evaluated together. */
+  int maxBatch;
+  /** How long the first request of a batch may wait for more requests, in nanoseconds. */
+  long maxDelay;
+
+  private final LinkedBlockingQueue<Request> queue = new LinkedBlockingQueue<Request>();
+
+  /** Number of evaluated requests and batches. */
+  final LongAdder requests = new LongAdder(), batches = new LongAdder();
+  /** Latencies of the most recent requests in nanoseconds, used as a ring buffer. */
+  private final long[] latencies = new long[1 << 16];
+  private long numLatencies = 0;
+  private final long startTime = System.nanoTime();
+
+  /** Constructor. Starts the batching thread.
+  * @param network The network used for the evaluations.
+  * @param batch The largest number of requests evaluated together.
+  * @param delayMicros How long the first request of a batch may wait for more requests, in microseconds.
+  */
+  public MoveBatcher(NeuralNetwork network, int batch, long delayMicros){
+    nn = network;
+    maxBatch = batch;
+    maxDelay = delayMicros*1000;
+    Thread t = new Thread(this::run, "MoveBatcher");
+    t.setDaemon(true);
+    t.start();
+  }
+
+  /** Replaces the network. Requests already being evaluated finish with the old network.
+  * @param network The new network.
+  */
+  public void swap(NeuralNetwork network){
+    nn = network;
+  }
+
+  /** Loads a new network from a file and swaps it in, @see NeuralNetwork#loadFromFile() The current network is kept if the file cannot be read or the network does not fit the board.
+  * @param filename The file to load from.
+  * @param squares The number of squares of the board, which must be the number of inputs and outputs of the network.
+  * @return Null if the network was swapped in, otherwise the reason why not.
+  */
+  public String loadFromFile(String filename, int squares){
+    NeuralNetwork network = new NeuralNetwork(new int[] {1, 1});
+    if(!network.loadFromFile(filename))
+      return "cannot read '" + filename + "'";
+    if(network.numInputs() != squares || network.numOutputs() != squares)
+      return "the network has " + network.numInputs() + " inputs and " + network.numOutputs() + " outputs, not " + squares;
+    swap(network);
+    return null;
+  }
+
+  /** Computes the output of the network for an input. Blocks until the batch containing the request has been evaluated.
+  * @param input The input to the network.
+  * @return Output of the network.
+  */
+  public double[] feedForward(double[] input){
+    Request r = new Request();
+    r.input = input;
+    r.enqueued = System.nanoTime();
+    queue.add(r);
+    try{
+      return r.result.get();
+    } catch(InterruptedException | ExecutionException e){
+      throw new RuntimeException(e);
+    }
+  }
+
+  /** The loop of the batching thread. */
+  private void run(){
+    ArrayList<Request> batch = new ArrayList<Request>();
+    while(true){
+      batch.clear();
+      try{
+        Request first = queue.take();
+        batch.add(first);
+        long deadline = first.enqueued + maxDelay;
+        while(batch.size() < maxBatch){
+          Request r = queue.poll(deadline - System.nanoTime(), TimeUnit.NANOSECONDS);
+          if(r == null)
+            break;
+          batch.add(r);
+        }
+      } catch(InterruptedException e){
+        return;
+      }
+
+      double[][] inputs = new double[batch.size()][];
+      for(int b = 0; b < inputs.length; b++)
+        inputs[b] = batch.get(b).input;
+      double[][] outputs;
+      try{
+        outputs = nn.feedForwardBatch(inputs);
+      } catch(RuntimeException e){
+        // fail the requests of this batch only, the thread keeps serving the others
+        for(Request r : batch)
+          r.result.completeExceptionally(e);
+        continue;
+      }
+
+      long now = System.nanoTime();
+      for(int b = 0; b < inputs.length; b++){
+        Request r = batch.get(b);
+        r.result.complete(outputs[b]);
+        recordLatency(now - r.enqueued);
+      }
+      requests.add(inputs.length);
+      batches.increment();
+    }
+  }
+
+  private synchronized void recordLatency(long l){
+    latencies[(int) (numLatencies++ % latencies.length)] = l;
+  }
+
+  /** Computes a percentile of the latencies of the most recent requests.
+  * @param p The percentile between 0 and 100.
+  * @return The latency in microseconds.
+  */
+  public synchronized double latencyPercentile(double p){
+    int n = (int) Math.min(numLatencies, latencies.length);
+    if(n == 0)
+      return 0.0;
+    long[] sorted = Arrays.copyOf(latencies, n);
+    Arrays.sort(sorted);
+    return sorted[(int) Math.min(n-1, Math.floor(p/100.0*n))]/1000.0;
+  }
+
+  /** @return The number of evaluated requests per second since the batcher was started. */
+  public double throughput(){
+    return requests.sum()/((System.nanoTime() - startTime)/1e9);
+  }
+
+  /** @return A one line summary of the counters. */
+  public String stats(){
+    long b = batches.sum();
+    return String.format("requests: %d, batches: %d, mean batch: %.2f, p50: %.1fus, p99: %.1fus, throughput: %.1f/s",
+        requests.sum(), b, (b == 0) ? 0.0 : requests.sum()/(double) b, latencyPercentile(50), latencyPercentile(99), throughput());
+  }
+}
@@ -0,0 +1,116 @@
+/** Keeps the weighted sums of the first layer of a network up to date as marks are added to and removed from a board, in the spirit of the efficiently updatable networks of chess engines.
+*
+*    The input of the network is mostly zeros and only one square changes per move, so instead of recomputing the whole first layer product for every position, the column of the first layer weights belonging to the changed square is added to (or subtracted from) the sums. This makes the cost of the first layer O(neurons) per move instead of O(squares*neurons).
+*
+*    Searches use play() and undo() while walking the game tree, Player.nnMove() uses sync() to catch up with the board it is given.
+*/
+public class NNAccumulator{
+
+  /** The network and the weight version the sums were computed with. */
+  NeuralNetwork nn;
+  private int version;
+
+  /** The board the sums correspond to. */
+  int[][] board;
+  /** The weighted sums plus biases of the first layer. */
+  double[] sums;
+
+  /** Stack of the moves made with play(), for undo(). */
+  private int[] undoSquare;
+  private int[] undoMark;
+  private int undoSize = 0;
+
+  /** If more than this many squares have changed since the last sync(), the sums are recomputed from scratch. */
+  static final int MAX_INCREMENTAL_CHANGES = 4;
+
+  /** Constructor. The accumulator starts from an empty board.
+  * @param network The network.
+  * @param dim The dimension of the board.
+  */
+  public NNAccumulator(NeuralNetwork network, int dim){
+    nn = network;
+    undoSquare = new int[dim*dim];
+    undoMark = new int[dim*dim];
+    reset(new int[dim][dim]);
+  }
+
+  /** The input value of a mark, @see NeuralNetwork#formatInput() */
+  private static double value(int mark){
+    return (mark == 1) ? -1.0 : (mark == 2) ? 1.0 : 0.0;
+  }
+
+  /** Recomputes the sums from scratch for a board.
+  * @param b The board. Copied.
+  */
+  public void reset(int[][] b){
+    board = new int[b.length][b.length];
+    for(int i = 0; i < b.length; i++)
+      System.arraycopy( b[i], 0, board[i], 0, b.length );
+    sums = nn.firstLayerSums(NeuralNetwork.formatInput(board));
+    version = nn.version;
+    undoSize = 0;
+  }
+
+  /** Changes the mark of a square and updates the sums.
+  * @param i The row of the square.
+  * @param j The column of the square.
+  * @param mark The new mark, 0 for empty.
+  */
+  private void set(int i, int j, int mark){
+    double delta = value(mark) - value(board[i][j]);
+    if(delta != 0.0)
+      nn.addToFirstLayerSums(sums, i*board.length + j, delta);
+    board[i][j] = mark;
+  }
+
+  /** Makes a move.
+  * @param i The row of the square.
+  * @param j The column of the square.
+  * @param mark The mark placed in the square.
+  */
+  public void play(int i, int j, int mark){
+    undoSquare[undoSize] = i*board.length + j;
+    undoMark[undoSize++] = board[i][j];
+    set(i, j, mark);
+  }
+
+  /** Takes back the latest move made with play(). */
+  public void undo(){
+    undoSize--;
+    set(undoSquare[undoSize] / board.length, undoSquare[undoSize] % board.length, undoMark[undoSize]);
+  }
+
+  /** Brings the sums up to date with a board. Only the squares that differ from the previous board are updated, unless there are many of them or the weights have changed.
+  * @param b The board.
+  */
+  public void sync(int[][] b){
+    if(nn.version != version){
+      reset(b);
+      return;
+    }
+    int changes = 0;
+    for(int i = 0; i < b.length; i++)
+      for(int j = 0; j < b.length; j++)
+        if(b[i][j] != board[i][j])
+          changes++;
+    if(changes > MAX_INCREMENTAL_CHANGES){
+      reset(b);
+      return;
+    }
+    for(int i = 0; i < b.length; i++)
+      for(int j = 0; j < b.length; j++)
+        if(b[i][j] != board[i][j])
+          set(i, j, b[i][j]);
+    undoSize = 0;
+  }
+
+  /** @return Output of the network for the current board. */
+  public double[] feedForward(){
+    return nn.feedForwardFromSums(sums);
+  }
+
+  /** @return The value head estimate for the current board, @see NeuralNetwork#evaluate() */
+  public double evaluate(){
+    return nn.evaluateFromSums(sums);
+  }
+}
@@ -0,0 +1,140 @@
+import java.io.*;
+import java.nio.channels.*;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/** A server for playing many concurrent games against the "Neural network" player. Each connection is a session served by its own thread, and the network moves of all the sessions go through a shared MoveBatcher so that they are evaluated in batches.
+*
+*    The protocol is line based text. The client sends
+*      NEW side       starts a new game where the client plays as player side (1 or 2). If the server moves first, it replies with its move.
+*      MOVE x y       makes a move. The reply is "MOVE x y" with the server's move, "MOVE x y END o" if the server's move ended the game, "END o" if the client's move ended the game or "ILLEGAL". Here o is the outcome as in TicTacToe.play().
+*      STATS          replies with the latency and throughput counters of the batcher.
+*      RELOAD file    loads new weights from a file, the running games continue with the new network. The reply is "OK", or "ERROR reason" if the file cannot be read or the network does not fit the board, in which case the old network stays.
+*      QUIT           closes the session.
+*/
+public class NNServer{
+
+  int dim, inARow;
+  MoveBatcher batcher;
+
+  /** Constructor.
+  * @param dimension The dimension of the game board.
+  * @param targetLength How many in a row a player needs to win.
+  * @param b The batcher used for the network moves.
+  */
+  public NNServer(int dimension, int targetLength, MoveBatcher b){
+    dim = dimension;
+    inARow = targetLength;
+    batcher = b;
+  }
+
+  /** Usage: NNServer address weightsFile dim inARow [maxBatch maxDelayMicros]
+  *
+  * The address is either host:port or unix:/path/to/socket, @see ParameterServer#parseAddress()
+  */
+  public static void main(String[] args) throws IOException{
+    if(args.length < 4){
+      System.out.println("Usage: java NNServer address weightsFile dim inARow [maxBatch maxDelayMicros]");
+      System.exit(-1);
+    }
+    int dim = Integer.parseInt(args[2]);
+    NeuralNetwork nn = new NeuralNetwork(new int[] {1, 1});
+    if(!nn.loadFromFile(args[1])){
+      System.out.println("Cannot read the network '" + args[1] + "'. Exiting.");
+      System.exit(-1);
+    }
+    if(nn.numInputs() != dim*dim || nn.numOutputs() != dim*dim){
+      System.out.println("The network has " + nn.numInputs() + " inputs and " + nn.numOutputs() + " outputs, not " + dim*dim + ". Exiting.");
+      System.exit(-1);
+    }
+    int maxBatch = (args.length > 4) ? Integer.parseInt(args[4]) : 64;
+    long delay = (args.length > 5) ? Long.parseLong(args[5]) : 200;
+
+    NNServer server = new NNServer(dim, Integer.parseInt(args[3]), new MoveBatcher(nn, maxBatch, delay));
+    server.serve(ParameterServer.openServer(args[0]));
+  }
+
+  /** Accepts sessions until the channel is closed.
+  * @param ssc The listening channel.
+  */
+  public void serve(ServerSocketChannel ssc){
+    ExecutorService sessions = Executors.newCachedThreadPool();
+    while(true){
+      try{
+        SocketChannel ch = ssc.accept();
+        ParameterServer.setNoDelay(ch);
+        sessions.execute(() -> session(ch));
+      } catch(IOException e){
+        sessions.shutdown();
+        return;
+      }
+    }
+  }
+
+  /** Serves a single client.
+  * @param ch The channel connected to the client.
+  */
+  private void session(SocketChannel ch){
+    Player nnPlayer = new Player("Neural network");
+    nnPlayer.batcher = batcher;
+    TicTacToe game = new TicTacToe(dim, inARow, "Human", "Human");
+    int side = 1;
+
+    try(BufferedReader in = new BufferedReader(new InputStreamReader(Channels.newInputStream(ch), StandardCharsets.UTF_8));
+        PrintWriter out = new PrintWriter(new OutputStreamWriter(Channels.newOutputStream(ch), StandardCharsets.UTF_8), true)){
+      String line;
+      while((line = in.readLine()) != null){
+        String[] cmd = line.trim().split("\\s+");
+        if(cmd[0].equals("NEW")){
+          side = Integer.parseInt(cmd[1]);
+          game.resetBoard();
+          if(side == 2)
+            out.println(serverMove(game, nnPlayer));
+        } else if(cmd[0].equals("MOVE")){
+          int x = Integer.parseInt(cmd[1]), y = Integer.parseInt(cmd[2]);
+          if(game.turnsPassed % 2 + 1 != side || x < 0 || x >= dim || y < 0 || y >= dim || game.board[x][y] != 0){
+            out.println("ILLEGAL");
+            continue;
+          }
+          game.board[x][y] = side;
+          game.turnsPassed++;
+          int vic = game.checkVictory(new int[]{x, y});
+          if(vic >= 0)
+            out.println("END " + ((vic == 1) ? side : 0));
+          else
+            out.println(serverMove(game, nnPlayer));
+        } else if(cmd[0].equals("STATS")){
+          out.println(batcher.stats());
+        } else if(cmd[0].equals("RELOAD")){
+          String error = batcher.loadFromFile(cmd[1], dim*dim);
+          out.println((error == null) ? "OK" : "ERROR " + error);
+        } else if(cmd[0].equals("QUIT")){
+          break;
+        }
+      }
+    } catch(IOException | RuntimeException e){
+      // the client disconnected or sent garbage, end the session
+    } finally{
+      try{ ch.close(); } catch(IOException e){}
+    }
+  }
+
+  /** Makes the network move in a session.
+  * @param game The game of the session.
+  * @param nnPlayer The network player of the session.
+  * @return The reply to the client.
+  */
+  private String serverMove(TicTacToe game, Player nnPlayer){
+    int pl = game.turnsPassed % 2;
+    // make sure the neural network AI gets the board in the right format.
+    int[] m = nnPlayer.move((pl == 1) ? game.invertBoard() : game.board);
+    game.board[m[0]][m[1]] = pl+1;
+    game.turnsPassed++;
+    int vic = game.checkVictory(m);
+    String reply = "MOVE " + m[0] + " " + m[1];
+    if(vic >= 0)
+      reply += " END " + ((vic == 1) ? pl+1 : 0);
+    return reply;
+  }
+}
@@ -1,4 +1,9 @@
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Locale;
+import java.util.Objects;
+import java.util.Random;
 
 /** A class that encapsulates methods for training a neural network. Training consists of running and recording several games in a batch, after which the network is given each game position and the move that was made, and the outcome of the game. If the outcome of the move was that eventually the game was won, that move on that input is encouraged in the future. If the outcome of the game was a loss, the corresponding move on the input is discouraged. The "encouraging" and "discouraging" here refer to adding or substracting the gradient obtained by backpropagation on that input. This is essentially supervised learning.
 */
@@ -7,21 +12,53 @@ class NNTrainer{
   
   public static void main(String[] args){
     // A new network can be trained by calling the train() method with suitable parameters. 
+    
+    // "distill" trains the network on the moves of a perfect player instead, @see distill()
+    if(args.length > 0 && Objects.equals(args[0], "distill")){
+      int dim = (args.length > 1) ? Integer.parseInt(args[1]) : 3, inARow = (args.length > 2) ? Integer.parseInt(args[2]) : 3;
+      distill(new PerfectSolver(dim, inARow), null, (args.length > 3) ? Integer.parseInt(args[3]) : 300, 32, .5, true);
+      showGame(new TicTacToe(dim, inARow, "Neural network", "Random"), "weights.txt", null, 10000, false);
+      showGame(new TicTacToe(dim, inARow, "Random", "Neural network"), null, "weights.txt", 10000, false);
+      showGame(new TicTacToe(dim, inARow, "Neural network", "Minmax"), "weights.txt", null, 1000, false);
+      showGame(new TicTacToe(dim, inARow, "Minmax", "Neural network"), null, "weights.txt", 1000, false);
+      return;
+    }
+    
+    // "conv" trains a network that starts with convolutional layers, for larger boards, @see convNetwork()
+    if(args.length > 0 && Objects.equals(args[0], "conv")){
+      int dim = (args.length > 1) ? Integer.parseInt(args[1]) : 5, inARow = (args.length > 2) ? Integer.parseInt(args[2]) : 4;
+      int batches = (args.length > 3) ? Integer.parseInt(args[3]) : 100;
+      // the architecture is read back from the file by train()
+      convNetwork(dim).saveToFile("weights.txt");
+      train(new TicTacToe(dim, inARow, "Random", "Neural network"), "weights.txt", 200, batches, .05, 1.0, -1.0, .5);
+      train(new TicTacToe(dim, inARow, "Neural network", "Random"), "weights.txt", 200, batches, .05, 1.0, -1.0, .5);
+      showGame(new TicTacToe(dim, inARow, "Neural network", "Random"), "weights.txt", null, 1000, false);
+      showGame(new TicTacToe(dim, inARow, "Random", "Neural network"), null, "weights.txt", 1000, false);
+      return;
+    }
+    
+    // if a file is given as an argument, the training metrics are written into it, @see TrainingMetrics
+    TrainingMetrics metrics = (args.length > 0) ? new TrainingMetrics(args[0]) : null;
         
     // The training scheme below seems to achieve the best training against a random player. The network structure is determined in the function train() and can be changed there.
     // The result of this training scheme is around 85% wins with X's and 60% wins with O's against a random opponent.
     
     // train the network against a random player in large batches and a large step size   
-    train(new TicTacToe(3, 3, "Random", "Neural network"), null, 500, 200, .1, 1.0, -1.0, .5);
-    train(new TicTacToe(3, 3, "Neural network", "Random"), "weights.txt", 500, 200, .1, 1.0, -1.0, .5);
+    train(new TicTacToe(3, 3, "Random", "Neural network"), null, 500, 200, .1, 1.0, -1.0, .5, false, metrics);
+    train(new TicTacToe(3, 3, "Neural network", "Random"), "weights.txt", 500, 200, .1, 1.0, -1.0, .5, false, metrics);
 
     // same again, but smaller step and batch sizes  
-    train(new TicTacToe(3, 3, "Random", "Neural network"), "weights.txt", 300, 1000, .01, 1.0, -1.0, .5);
-    train(new TicTacToe(3, 3, "Neural network", "Random"), "weights.txt", 300, 1000, .01, 1.0, -1.0, .5);
+    train(new TicTacToe(3, 3, "Random", "Neural network"), "weights.txt", 300, 1000, .01, 1.0, -1.0, .5, false, metrics);
+    train(new TicTacToe(3, 3, "Neural network", "Random"), "weights.txt", 300, 1000, .01, 1.0, -1.0, .5, false, metrics);
 
     // again smaller step and batch sizes  
-    train(new TicTacToe(3, 3, "Random", "Neural network"), "weights.txt", 100, 1000, .001, 1.0, -1.0, .5);
-    train(new TicTacToe(3, 3, "Neural network", "Random"), "weights.txt", 100, 1000, .001, 1.0, -1.0, .5);
+    train(new TicTacToe(3, 3, "Random", "Neural network"), "weights.txt", 100, 1000, .001, 1.0, -1.0, .5, false, metrics);
+    train(new TicTacToe(3, 3, "Neural network", "Random"), "weights.txt", 100, 1000, .001, 1.0, -1.0, .5, false, metrics);
+    
+    if(metrics != null){
+      metrics.close();
+      System.out.println(metrics.summary());
+    }
     
     // finally, display some statistics of the games by the neural network against a random player
     showGame(new TicTacToe(3, 3, "Neural network", "Random"), "weights.txt", null, 10000, false);
@@ -29,6 +66,24 @@ class NNTrainer{
 
   }
 
+  /** The architecture of convNetwork(): the channels of the convolutional layers starting from the input, the size of their kernels, and the fully connected layers after them without the output layer. */
+  static final int[] CONV_CHANNELS = {1, 8, 8};
+  static final int CONV_KERNEL = 3;
+  static final int[] CONV_HIDDEN = {64};
+
+  /** Creates a random network that starts with convolutional layers, @see NeuralNetwork#NeuralNetwork(int, int[], int, int[]) The kernels are shared over the board, so the number of their weights does not grow with the board as a fully connected first layer does.
+  *@param dim The dimension of the game board.
+  *@return The network, with one output per square.
+  */
+  public static NeuralNetwork convNetwork(int dim){
+    int[] layerList = Arrays.copyOf(CONV_HIDDEN, CONV_HIDDEN.length + 1);
+    layerList[CONV_HIDDEN.length] = dim*dim;
+    return new NeuralNetwork(dim, CONV_CHANNELS, CONV_KERNEL, layerList);
+  }
+
+  /** Number of network outputs cached by each network player in showGame(). */
+  static final int EVALUATION_CACHE_SIZE = 1 << 16;
+
   /** Runs a given amount of games with desired parameters.
   *@param game The TicTacToe object containing the game parameters.
   *@param p1File The file to load player 1's neural network weights, null if the player is not a neural network or if new random network is wanted. 
@@ -41,6 +96,12 @@ class NNTrainer{
       game.player1.nn.loadFromFile(p1File);
     if(p2File != null)
       game.player2.nn.loadFromFile(p2File);
+    
+    // the same positions come up over and over again, so cache the network outputs
+    if(game.player1.isNN())
+      game.player1.cache = new PolicyCache(EVALUATION_CACHE_SIZE);
+    if(game.player2.isNN())
+      game.player2.cache = new PolicyCache(EVALUATION_CACHE_SIZE);
 
     int p1Wins = 0, p2Wins = 0;
     for(int k = 0; k < num; k++){
@@ -65,6 +126,22 @@ class NNTrainer{
   *@param drawMod The modifier that multiplies the gradient when the outcome of the game was a draw. Preferably 0.5.
   */
   public static void train(TicTacToe game, String file, int batchSize, int numBatches, double learningRate, double positiveMod, double negativeMod, double drawMod){
+    train(game, file, batchSize, numBatches, learningRate, positiveMod, negativeMod, drawMod, false);
+  }
+  
+  /**
+  * Same as above, but optionally trains a value head together with the policy, @see NeuralNetwork#addValueHead()
+  *@param valueHead If true, a value head is added to the network unless it already has one. The value head is trained on the outcomes of the games with the squared error, added to the policy loss with weight VALUE_LOSS_WEIGHT.
+  */
+  public static void train(TicTacToe game, String file, int batchSize, int numBatches, double learningRate, double positiveMod, double negativeMod, double drawMod, boolean valueHead){
+    train(game, file, batchSize, numBatches, learningRate, positiveMod, negativeMod, drawMod, valueHead, null);
+  }
+
+  /**
+  * Same as above, and records the throughput and the progress of the training, @see TrainingMetrics
+  *@param metrics The metrics the batches are recorded into, or null for none. Can be shared by several training runs.
+  */
+  public static void train(TicTacToe game, String file, int batchSize, int numBatches, double learningRate, double positiveMod, double negativeMod, double drawMod, boolean valueHead, TrainingMetrics metrics){
     
     // train the neural network declared here, copy the result to the neural network player after each training step
     NeuralNetwork nn = new NeuralNetwork(new int[] {game.dim*game.dim, 20, 20, game.dim*game.dim});
@@ -79,6 +156,9 @@ class NNTrainer{
       nn.loadFromFile(file);
     else
       file = "weights.txt";
+    
+    if(valueHead && nn.valueHead == null)
+      nn.addValueHead();
 
 
     int bCounter = 0;
@@ -86,49 +166,38 @@ class NNTrainer{
     int p1Wins = 0;
     int p2Wins = 0;
     
+    if(metrics != null)
+      metrics.startRun();
+    
     while(bCounter < numBatches){
 
-      ArrayList<GameRecord> gameRecords = new ArrayList<GameRecord>();
-      
-      while(gameRecords.size() < batchSize){
-        GameRecord g = game.recordedPlay();
-        if(g.outcome != 0 || drawMod != 0.0)
-          gameRecords.add(g);
+      if(metrics != null){
+        metrics.startBatch(bCounter + 1);
+        metrics.phase(TrainingMetrics.GENERATION);
       }
+      ArrayList<GameRecord> gameRecords = playBatch(game, batchSize, drawMod);
       // train the network based on batch of games     
       
-      double learningDirection;
-      
       // initializes the gradient to have the correct number of variables
       Gradient grad = null;
+      if(metrics != null)
+        metrics.phase(TrainingMetrics.BACKPROP);
       grad = nn.initializeGradient();      
       
-      double bSize = 0.0;
+      double bSize = accumulateGradient(nn, gameRecords, grad, game.board.length, positiveMod, negativeMod, drawMod);
       
       for(GameRecord g : gameRecords){
-        learningDirection = drawMod;
-        
-        for(int i = 0; i < g.move.size(); i++){
-          // check if the current game on record was won by player 1 or player 2, and 
-          if((g.outcome == 1 && g.playingAs.get(i) == 1) || (g.outcome == 2 && g.playingAs.get(i) == 2))
-            learningDirection = positiveMod;
-          else if ((g.outcome == 1 && g.playingAs.get(i) == 2) || (g.outcome == 2 && g.playingAs.get(i) == 1))
-            learningDirection = negativeMod;
-          
-
-          bSize += 1.0;
-          // if the game outcome with input g.board.get(i) was positive, reinforce that part of the total gradient
-          // if the outcome was negative, substract the corresponding gradient from the total gradient
-          grad.addToGradient(nn.getGradient(g.board.get(i), g.move.get(i)[0]*game.board.length+g.move.get(i)[1]), learningDirection);  
-        }
         if(g.outcome == 1)
           p1Wins++;
         else if(g.outcome == 2)
           p2Wins++;
-
       }         
       // take the learning step and save the result in a file
+      if(metrics != null)
+        metrics.phase(TrainingMetrics.UPDATE);
       nn.gradientStep(grad, 1.0*learningRate, bSize);
+      if(metrics != null)
+        metrics.phase(TrainingMetrics.CHECKPOINT);
       nn.saveToFile(file);
       
       // if either of the players is a neural network, load the weights from the file
@@ -138,6 +207,8 @@ class NNTrainer{
       if(game.player2.isNN()){
         game.player2.nn.loadFromFile(file);
       } 
+      if(metrics != null)
+        metrics.endBatch(nn, gameRecords, grad, bSize);
       
       bCounter += 1;  
       
@@ -152,4 +223,164 @@ class NNTrainer{
       //  game.play(true);
     }    
   }  
+
+  /**
+  * Trains the network by supervised learning on the moves of a perfect player instead of reinforcement from its own games. Every position that can be reached in the game is labelled by the solver, and the network is trained for a number of epochs over the positions in shuffled mini batches. The policy loss is the cross entropy against the uniform distribution over the optimal moves, and the value head, if there is one, learns the value of the position under perfect play.
+  *@param solver The solver of the game, which also determines the board.
+  *@param file The file used for the network weights. If null, a new random network is created and the resulting weights will be saved in file weights.txt.
+  *@param epochs The number of passes over the positions.
+  *@param batchSize The number of positions per gradient step.
+  *@param learningRate The learning rate.
+  *@param valueHead If true, a value head is added to the network unless it already has one.
+  *@return The agreement rate after the last epoch, @see agreement()
+  */
+  public static double distill(PerfectSolver solver, String file, int epochs, int batchSize, double learningRate, boolean valueHead){
+    int d = solver.dim;
+    // wider than the network of train(), since the network has to fit perfect play instead of beating a random player
+    NeuralNetwork nn = new NeuralNetwork(new int[] {d*d, 64, 64, d*d});
+    if(file != null)
+      nn.loadFromFile(file);
+    else
+      file = "weights.txt";
+    if(valueHead && nn.valueHead == null)
+      nn.addValueHead();
+    
+    double agreement = distill(solver, nn, epochs, batchSize, learningRate);
+    nn.saveToFile(file);
+    return agreement;
+  }
+  
+  /** Same as above, but trains a network in memory instead of a file, for example a pruned network whose pruned weights must stay zero, @see NeuralNetwork#mask
+  *@param nn The network to train.
+  */
+  public static double distill(PerfectSolver solver, NeuralNetwork nn, int epochs, int batchSize, double learningRate){
+    int d = solver.dim;
+    long start = System.nanoTime();
+    ArrayList<PerfectSolver.Position> positions = solver.positions();
+    System.out.println(positions.size() + " positions labelled (" + solver.size() + " solved up to symmetry) in " + (System.nanoTime() - start)/1000000 + " ms");
+    
+    Random rnd = new Random();
+    double agreement = 0.0;
+    for(int epoch = 1; epoch <= epochs; epoch++){
+      Collections.shuffle(positions, rnd);
+      for(int b = 0; b < positions.size(); b += batchSize){
+        Gradient grad = nn.initializeGradient();
+        int n = Math.min(batchSize, positions.size() - b);
+        for(PerfectSolver.Position p : positions.subList(b, b + n)){
+          grad.addToGradient(nn.getGradient(p.input, p.target(d*d)), 1.0);
+          if(nn.valueHead != null)
+            grad.addToGradient(nn.getValueGradient(p.input, p.value), VALUE_LOSS_WEIGHT);
+        }
+        nn.gradientStep(grad, learningRate, n);
+      }
+      
+      if(epoch % 10 == 0 || epoch == epochs){
+        double[] a = agreement(nn, positions, d);
+        agreement = a[0];
+        System.out.println(String.format(Locale.ROOT, "epoch %d: agreement %.4f, probability of optimal moves %.4f (%.1f s)", epoch, a[0], a[1], (System.nanoTime() - start)/1e9));
+      }
+    }
+    return agreement;
+  }
+  
+  /** Measures how well the network agrees with perfect play on labelled positions.
+  *@param nn The network.
+  *@param positions The positions labelled by a solver, @see PerfectSolver#positions()
+  *@param bLength The dimension of the game board.
+  *@return A pair {the fraction of positions where the most likely legal move of the network is optimal, the mean probability the network gives to the optimal moves after masking the illegal ones}.
+  */
+  public static double[] agreement(NeuralNetwork nn, ArrayList<PerfectSolver.Position> positions, int bLength){
+    double agree = 0.0, mass = 0.0;
+    for(PerfectSolver.Position p : positions){
+      double[] output = nn.feedForward(p.input);
+      int best = -1;
+      double d = 0.0;
+      for(int c = 0; c < output.length; c++)
+        if(p.input[c] == 0.0){
+          d += output[c];
+          if(best < 0 || output[c] > output[best])
+            best = c;
+        }
+      for(int m : p.optimal){
+        mass += output[m]/d;
+        if(m == best)
+          agree++;
+      }
+    }
+    return new double[] {agree/positions.size(), mass/positions.size()};
+  }
+
+  /** How many games are played in lockstep when a neural network is playing, @see VectorizedGames */
+  static final int LOCKSTEP_GAMES = 64;
+
+  /** Weight of the value loss relative to the policy loss when the network has a value head. */
+  static final double VALUE_LOSS_WEIGHT = 1.0;
+
+  /** Plays and records a batch of games. Draws are left out if they would not contribute to the gradient. If either player is a neural network, the games are played in lockstep so that the network moves can be evaluated in batches.
+  *@param game The TicTacToe instance that contains the game parameters, including the player types.
+  *@param batchSize The number of games to record.
+  *@param drawMod The modifier of drawn games, draws are skipped if this is 0.0.
+  *@return The recorded games.
+  */
+  public static ArrayList<GameRecord> playBatch(TicTacToe game, int batchSize, double drawMod){
+    if(game.player1.isNN() || game.player2.isNN())
+      return new VectorizedGames(game, Math.min(batchSize, LOCKSTEP_GAMES)).playBatch(batchSize, drawMod);
+    
+    ArrayList<GameRecord> gameRecords = new ArrayList<GameRecord>();
+    
+    while(gameRecords.size() < batchSize){
+      GameRecord g = game.recordedPlay();
+      if(g.outcome != 0 || drawMod != 0.0)
+        gameRecords.add(g);
+    }
+    return gameRecords;
+  }
+
+  /** Adds up the gradients of all the moves in a batch of recorded games. Each move's gradient is scaled by the modifier corresponding to the outcome of the game for the player who made the move. If the network has a value head, the gradient of its loss is added as well.
+  *@param nn The network whose gradients are computed.
+  *@param gameRecords The batch of recorded games.
+  *@param grad The gradient where the result is accumulated. Must have the dimensions of the network, @see NeuralNetwork#initializeGradient()
+  *@param bLength The dimension of the game board.
+  *@param positiveMod The modifier that multiplies the gradient when the outcome of the game was positive.
+  *@param negativeMod The modifier that multiplies the gradient when the outcome of the game was negative.
+  *@param drawMod The modifier that multiplies the gradient when the outcome of the game was a draw.
+  *@return The number of moves added to the gradient, to be used as the batch size in the gradient step.
+  */
+  public static double accumulateGradient(NeuralNetwork nn, ArrayList<GameRecord> gameRecords, Gradient grad, int bLength, double positiveMod, double negativeMod, double drawMod){
+    return accumulateGradient(nn, gameRecords, grad, bLength, positiveMod, negativeMod, drawMod, 0);
+  }
+
+  /** Same as above, but only adds the moves of one of the players, for when the opponent is a different network, @see PopulationTraining
+  *@param player The player whose moves are added, 1 or 2, or 0 for both.
+  */
+  public static double accumulateGradient(NeuralNetwork nn, ArrayList<GameRecord> gameRecords, Gradient grad, int bLength, double positiveMod, double negativeMod, double drawMod, int player){
+    double learningDirection;
+    double bSize = 0.0;
+    
+    for(GameRecord g : gameRecords){
+      learningDirection = drawMod;
+      
+      for(int i = 0; i < g.move.size(); i++){
+        // check if the current game on record was won by player 1 or player 2, and 
+        if((g.outcome == 1 && g.playingAs.get(i) == 1) || (g.outcome == 2 && g.playingAs.get(i) == 2))
+          learningDirection = positiveMod;
+        else if ((g.outcome == 1 && g.playingAs.get(i) == 2) || (g.outcome == 2 && g.playingAs.get(i) == 1))
+          learningDirection = negativeMod;
+        
+        if(player != 0 && g.playingAs.get(i) != player)
+          continue;
+        bSize += 1.0;
+        // if the game outcome with input g.board.get(i) was positive, reinforce that part of the total gradient
+        // if the outcome was negative, substract the corresponding gradient from the total gradient
+        grad.addToGradient(nn.getGradient(g.board.get(i), g.move.get(i)[0]*bLength+g.move.get(i)[1]), learningDirection);  
+        
+        // the value head learns the outcome of the game for the player to move
+        if(nn.valueHead != null){
+          double target = (g.outcome == 0) ? 0.0 : (g.outcome == g.playingAs.get(i)) ? 1.0 : -1.0;
+          grad.addToGradient(nn.getValueGradient(g.board.get(i), target), VALUE_LOSS_WEIGHT);
+        }
+      }
+    }
+    return bSize;
+  }
 }
\ No newline at end of file
@@ -2,12 +2,14 @@ import java.util.concurrent.ThreadLocalRandom;
 import java.util.Objects;
 import java.lang.Math;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.io.*;
 
 /** Representation of a neural network with any number of layers.
 *
 *    The class is designed so that the hidden layers are assumed to have either sigmoid or rectified linear units (ReLUs) as activations and the output layer activation is the softmax function.
+*    Optionally the network has a second output, a value head, that shares the hidden layers with the softmax output and estimates the outcome of the game.
 *    Contains an implementation of gradient descent algorithm using backpropagation for optimizing the weights.
 */
    
@@ -21,7 +23,7 @@ public class NeuralNetwork{
     double[][] weights;
     double[] biases;
     
-    /** Represents the type of a neuron as a string, in this application we have three possibilities, "Softmax" (to get a probability distribution as output), "Sigmoid" and "ReLU" (rectified linear unit). */
+    /** Represents the type of a neuron as a string, in this application we have the possibilities "Softmax" (to get a probability distribution as output), "Sigmoid", "ReLU" (rectified linear unit), "Tanh" (only used by the value head) and "Conv" (convolution followed by a ReLU). */
     String type;
     
     /** Number of neurons in the layer. */
@@ -29,6 +31,9 @@ public class NeuralNetwork{
     /** Input dimension to the layer. Same as the number of neurons in the previous layer.*/
     int inputDim;
     
+    /** For convolutional layers: the number of input channels, the size of the square kernel, the zero padding on each side of the input, and the widths of the square input and output images. The weights have one row per output channel and the biases one entry per output channel, so weights[c] is the kernel of output channel c over all the input channels. Inputs and outputs are stored channel by channel, row by row. */
+    int inChannels, kernel, padding, width, outWidth;
+    
     /** Creates a new layer 
      * @param nodes The number of neurons in the layer.
      * @param dim The input dimension.
@@ -49,13 +54,99 @@ public class NeuralNetwork{
         biases[i] = ThreadLocalRandom.current().nextGaussian();
       }  
     }
+    
+    /** Creates a new convolutional layer with stride 1.
+     * @param outCh The number of output channels.
+     * @param inCh The number of input channels.
+     * @param k The size of the kernel.
+     * @param pad The zero padding on each side of the input.
+     * @param w The width of the input image.
+    */
+    public Layer(int outCh, int inCh, int k, int pad, int w){
+      this(outCh, inCh*k*k, "Conv");
+      inChannels = inCh;
+      kernel = k;
+      padding = pad;
+      width = w;
+      outWidth = w + 2*pad - k + 1;
+      numNodes = outCh*outWidth*outWidth;
+      inputDim = inCh*w*w;
+    }
+    
+    boolean isConv(){
+      return Objects.equals(type, "Conv");
+    }
+    
+    /** Unrolls the input patches of a convolutional layer into the columns of a matrix (im2col), so that the convolution becomes the matrix product weights*cols.
+    * @param input The input image of the layer.
+    * @return A matrix with one row per (input channel, kernel row, kernel column) and one column per output pixel.
+    */
+    double[][] im2col(double[] input){
+      double[][] cols = new double[inChannels*kernel*kernel][outWidth*outWidth];
+      for(int c = 0; c < inChannels; c++)
+        for(int ki = 0; ki < kernel; ki++)
+          for(int kj = 0; kj < kernel; kj++){
+            double[] row = cols[(c*kernel + ki)*kernel + kj];
+            for(int i = 0; i < outWidth; i++){
+              int x = i + ki - padding;
+              if(x < 0 || x >= width)
+                continue;
+              for(int j = 0; j < outWidth; j++){
+                int y = j + kj - padding;
+                if(y >= 0 && y < width)
+                  row[i*outWidth + j] = input[(c*width + x)*width + y];
+              }
+            }
+          }
+      return cols;
+    }
+    
+    /** The inverse of im2col(): adds up the entries of a column matrix back to the pixels of the input image they were taken from.
+    * @param cols A matrix of the shape of im2col().
+    * @return The image.
+    */
+    double[] col2im(double[][] cols){
+      double[] image = new double[inputDim];
+      for(int c = 0; c < inChannels; c++)
+        for(int ki = 0; ki < kernel; ki++)
+          for(int kj = 0; kj < kernel; kj++){
+            double[] row = cols[(c*kernel + ki)*kernel + kj];
+            for(int i = 0; i < outWidth; i++){
+              int x = i + ki - padding;
+              if(x < 0 || x >= width)
+                continue;
+              for(int j = 0; j < outWidth; j++){
+                int y = j + kj - padding;
+                if(y >= 0 && y < width)
+                  image[(c*width + x)*width + y] += row[i*outWidth + j];
+              }
+            }
+          }
+      return image;
+    }
   }
 
   /** Layers of the network. */
   Layer[] layers; 
   
+  /** Optional value head. A single tanh neuron on top of the last hidden layer that estimates the outcome of the game for the player to move, from -1 (loss) to 1 (win). In gradients it has the index layers.length. */
+  Layer valueHead = null;
+  
+  /** Incremented every time the weights change, so that anything computed from the weights can tell when it is out of date, @see PolicyCache */
+  int version = 0;
+  
+  /** The weights of the first layer transposed, one row per input, together with the version they were taken at. Rebuilt by firstLayerColumns() when the weights change. */
+  private static class Transposed{
+    int version;
+    double[][] columns;
+  }
+  private volatile Transposed firstLayerT = null;
+  
+  /** Set by prune(): the weights that are kept, indexed like the gradients. The other weights stay zero in gradient steps, so that a pruned network can be fine-tuned without losing its sparsity. Not saved, and cleared when the network is loaded. */
+  boolean[][][] mask = null;
+  
   /** Coefficient of the ReLU activation on the negative domain, i.e., ReLU(x) = (x > 0) ? x : RELU_NEG_COEFF*x; */
-  final double RELU_NEG_COEFF = 0.3;
+  static final double RELU_NEG_COEFF = 0.3;
   
   /** A variable to store the input to the network after formatting it to be most compatible with the network.*/
   private double[] formattedInput = null;
@@ -85,6 +176,43 @@ public class NeuralNetwork{
     layers[layerList.length-2] = new Layer(layerList[layerList.length-1], layerList[layerList.length-2], "Softmax");
   }
  
+  /** NeuralNetwork constructor for a network that starts with convolutional layers. The convolutions keep the size of the board, and are followed by fully connected layers like in the other constructor.
+   * @param boardWidth The dimension of the board.
+   * @param channels The numbers of channels of the convolutional layers, starting from the input which has 1 channel. For example {1, 16, 16} means two convolutional layers with 16 output channels each.
+   * @param kernel The size of the kernels, an odd number.
+   * @param layerList The sizes of the fully connected layers after the convolutions, the last one being the output layer.
+   */
+  public NeuralNetwork(int boardWidth, int[] channels, int kernel, int[] layerList){
+    layers = new Layer[channels.length-1 + layerList.length];
+    for(int i = 0; i < channels.length-1; i++)
+      layers[i] = new Layer(channels[i+1], channels[i], kernel, kernel/2, boardWidth);
+    
+    int inputDim = channels[channels.length-1]*boardWidth*boardWidth;
+    for(int i = 0; i < layerList.length; i++){
+      layers[channels.length-1 + i] = new Layer(layerList[i], inputDim, (i == layerList.length-1) ? "Softmax" : "Sigmoid");
+      inputDim = layerList[i];
+    }
+  }
+  
+  /** Adds a value head to the network, initialized with random gaussians like the other layers. */
+  public void addValueHead(){
+    valueHead = new Layer(1, trunkDim(), "Tanh");
+  }
+  
+  /** @return The number of outputs of the shared trunk, in other words the input dimension of the value head. */
+  private int trunkDim(){
+    return (layers.length > 1) ? layers[layers.length-2].numNodes : layers[0].inputDim;
+  }
+  
+  /** The layers that have weights, in the order of their indices in a Gradient: the layers of the network followed by the value head if there is one. */
+  private Layer paramLayer(int l){
+    return (l < layers.length) ? layers[l] : valueHead;
+  }
+  
+  private int numParamLayers(){
+    return layers.length + ((valueHead != null) ? 1 : 0);
+  }
+ 
   /** Formats the input to be suitable for the network.  
    * @param board The board as a two-dimensional int array where X's are represented by 1, O's by 2 and empty positions by 0.
    * @return A 1-dimensional double array where X's are represented by -1.0, O's by 1.0 and empty positions as 0.0's.
@@ -138,48 +266,304 @@ public class NeuralNetwork{
     return input;
   }
   
+  /** Computes the outputs of the network for a batch of inputs at once. Each layer is evaluated for the whole batch before moving to the next one, so that the weights of a layer are read once per batch instead of once per input.
+  *  @param inputs The inputs as rows of a matrix. Each row must have the proper size.
+  *  @return Outputs of the network, one row per input.
+  */
+  public double[][] feedForwardBatch(double[][] inputs){
+    for(int i = 0; i < layers.length; i++)
+      inputs = activateBatch(layers[i], inputs);
+    
+    return inputs;
+  }
+  
+  /** Computes the activations of a given layer for a batch of inputs.
+  * @param layer A layer of the network to be activated.
+  * @param inputs The inputs to the layer, one per row.
+  * @return The activations of each neuron in the layer, one row per input.
+  */
+  public double[][] activateBatch(Layer layer, double[][] inputs){
+    double[][] output = new double[inputs.length][layer.numNodes];
+    
+    if(layer.isConv()){
+      for(int b = 0; b < inputs.length; b++)
+        output[b] = activate(layer, inputs[b]);
+      return output;
+    }
+    
+    // the product of the weight matrix and the input matrix, computed one weight row at a time
+    for(int i = 0; i < layer.numNodes; i++){
+      double[] w = layer.weights[i];
+      for(int b = 0; b < inputs.length; b++)
+        output[b][i] = dot(w, inputs[b]) + layer.biases[i];
+    }
+    
+    for(int b = 0; b < inputs.length; b++)
+      applyActivation(layer, output[b]);
+    return output;
+  }
+  
+  /** Applies the activation function of a layer to the weighted sums of its inputs.
+  * @param layer The layer.
+  * @param o The weighted sums plus biases of each neuron. Replaced by the activations.
+  */
+  public void applyActivation(Layer layer, double[] o){
+    // the convolutional layers are rectified
+    applyActivation(layer.isConv() ? "ReLU" : layer.type, o);
+  }
+  
+  /** Applies an activation function to the weighted sums of the neurons of a layer. Shared with SparseNetwork.
+  * @param type The type of the neurons: "Softmax", "ReLU", "Sigmoid" or "Tanh".
+  * @param o The weighted sums plus biases of each neuron. Replaced by the activations.
+  */
+  static void applyActivation(String type, double[] o){
+    if(Objects.equals(type, "Softmax")){
+      // shifted by the largest sum, which does not change the result but keeps exp() finite
+      double max = Double.NEGATIVE_INFINITY, s = 0.0;
+      for(double x : o)
+        max = Math.max(max, x);
+      for(int i = 0; i < o.length; i++){
+        o[i] = Math.exp(o[i] - max);
+        s += o[i];
+      }
+      for(int i = 0; i < o.length; i++)
+        o[i] /= s;
+    } else if(Objects.equals(type, "ReLU")) {
+      for(int i = 0; i < o.length; i++)
+        o[i] = (o[i] > 0.0) ? o[i] : RELU_NEG_COEFF*o[i];
+    } else if(Objects.equals(type, "Sigmoid")) {
+      for(int i = 0; i < o.length; i++)
+        o[i] = 1/(1+Math.exp(-o[i]));
+    } else if(Objects.equals(type, "Tanh")) {
+      for(int i = 0; i < o.length; i++)
+        o[i] = Math.tanh(o[i]);
+    } else {
+      System.out.println("Node type wrong in the network.");
+      System.exit(-1);
+    }
+  }
+  
+  /** @return True if the first layer is fully connected, so that its weighted sums can be updated incrementally, @see NNAccumulator */
+  public boolean supportsIncremental(){
+    return !layers[0].isConv();
+  }
+  
+  /** Computes the weighted sums plus biases of the first layer, before the activation. Used for updating the first layer incrementally, @see NNAccumulator
+  * @param input The input to the network.
+  * @return The weighted sums of each neuron in the first layer.
+  */
+  public double[] firstLayerSums(double[] input){
+    double[] sums = new double[layers[0].numNodes];
+    for(int i = 0; i < sums.length; i++)
+      sums[i] = dot(layers[0].weights[i], input) + layers[0].biases[i];
+    return sums;
+  }
+  
+  /** Updates the weighted sums of the first layer when one input changes.
+  * @param sums The weighted sums of the first layer. Modified in place.
+  * @param idx The index of the input that changed.
+  * @param delta The change of the input.
+  */
+  public void addToFirstLayerSums(double[] sums, int idx, double delta){
+    // the weights of one input are a column of the weight matrix, so walk a row of the transpose instead
+    double[] w = firstLayerColumns()[idx];
+    for(int i = 0; i < sums.length; i++)
+      sums[i] += delta*w[i];
+  }
+  
+  /** @return The weights of the first layer transposed, so that columns[j][i] is the weight of input j in neuron i. Shared by the threads, and rebuilt when the version of the weights has changed. */
+  private double[][] firstLayerColumns(){
+    Transposed t = firstLayerT;
+    if(t == null || t.version != version){
+      double[][] w = layers[0].weights;
+      t = new Transposed();
+      t.version = version;
+      t.columns = new double[w[0].length][w.length];
+      for(int i = 0; i < w.length; i++)
+        for(int j = 0; j < w[i].length; j++)
+          t.columns[j][i] = w[i][j];
+      firstLayerT = t;
+    }
+    return t.columns;
+  }
+  
+  /** Computes the output of the network from the weighted sums of the first layer.
+  * @param sums The weighted sums plus biases of the first layer. Not modified.
+  * @return Output of the network.
+  */
+  public double[] feedForwardFromSums(double[] sums){
+    double[] input = new double[sums.length];
+    System.arraycopy( sums, 0, input, 0, sums.length );
+    applyActivation(layers[0], input);
+    for(int i = 1; i < layers.length; i++)
+      input = activate(layers[i], input);
+    
+    return input;
+  }
+  
+  /** Estimates the value of a position with the value head.
+  * @param board The board in the format of Player.move().
+  * @return The expected outcome of the game for the player to move, between -1 (loss) and 1 (win).
+  */
+  public double evaluate(int[][] board){
+    double[] input = formatInput(board);
+    for(int i = 0; i < layers.length-1; i++)
+      input = activate(layers[i], input);
+    return activate(valueHead, input)[0];
+  }
+  
+  /** Estimates the value of a position from the weighted sums of the first layer, @see NNAccumulator
+  * @param sums The weighted sums plus biases of the first layer. Not modified. The network must have at least one hidden layer.
+  * @return The expected outcome of the game for the player to move.
+  */
+  public double evaluateFromSums(double[] sums){
+    double[] input = new double[sums.length];
+    System.arraycopy( sums, 0, input, 0, sums.length );
+    applyActivation(layers[0], input);
+    for(int i = 1; i < layers.length-1; i++)
+      input = activate(layers[i], input);
+    return activate(valueHead, input)[0];
+  }
+  
+  /** Computes the gradient of the squared error of the value head, (v-target)^2/2, with respect to the weights and biases of the value head and the hidden layers.
+  * @param input The input to the network.
+  * @param target The outcome of the game for the player to move, -1, 0 or 1.
+  * @return The gradient. Contains no entry for the policy output layer.
+  */
+  public Gradient getValueGradient(double[] input, double target){
+    // feed forward through the trunk, storing the activations
+    ArrayList<double[]> activations = new ArrayList<double[]>();
+    double[] a = input;
+    for(int l = 0; l < layers.length-1; l++){
+      a = activate(layers[l], a);
+      activations.add(a);
+    }
+    double v = activate(valueHead, a)[0];
+    
+    Gradient g = new Gradient();
+    // derivative of the loss with respect to the weighted sum of the value neuron, tanh'(x) = 1-tanh(x)^2
+    double[] dz = new double[] {(v - target)*(1 - v*v)};
+    double[] dA = denseGradient(valueHead, layers.length, dz, a, g);
+    
+    backpropagate(input, activations, layers.length-2, dA, g);
+    return g;
+  }
+  
+  /** Propagates the derivative of a loss with respect to the activations of a hidden layer down to the input, and stores the gradients of the weights and biases on the way. Handles the hidden layer types Sigmoid, ReLU, Tanh and Conv.
+  * @param input The input to the network.
+  * @param activations The activations of the layers from 0 up to at least top.
+  * @param top The index of the highest layer to propagate through.
+  * @param dA The derivative of the loss with respect to the activations of layer top.
+  * @param g The gradient where the results are stored, with the layer indices as keys.
+  */
+  private void backpropagate(double[] input, ArrayList<double[]> activations, int top, double[] dA, Gradient g){
+    for(int l = top; l >= 0; l--){
+      Layer layer = layers[l];
+      double[] a = activations.get(l);
+      double[] prev = (l > 0) ? activations.get(l-1) : input;
+      
+      // derivative with respect to the weighted sums, using the derivative of the activation written in terms of the activation
+      double[] dz = new double[layer.numNodes];
+      for(int i = 0; i < layer.numNodes; i++){
+        if(Objects.equals(layer.type, "Sigmoid"))
+          dz[i] = dA[i]*a[i]*(1-a[i]);
+        else if(Objects.equals(layer.type, "ReLU") || layer.isConv())
+          dz[i] = dA[i]*((a[i] > 0) ? 1.0 : RELU_NEG_COEFF);
+        else if(Objects.equals(layer.type, "Tanh"))
+          dz[i] = dA[i]*(1-a[i]*a[i]);
+      }
+      
+      dA = layer.isConv() ? convGradient(layer, l, dz, prev, g) : denseGradient(layer, l, dz, prev, g);
+    }
+  }
+  
+  /** Computes the gradients of the weights and biases of a fully connected layer.
+  * @param layer The layer.
+  * @param key The index of the layer in the gradient.
+  * @param dz The derivative of the loss with respect to the weighted sums of the layer.
+  * @param prev The input of the layer.
+  * @param g The gradient where the results are stored.
+  * @return The derivative of the loss with respect to the input of the layer.
+  */
+  private double[] denseGradient(Layer layer, int key, double[] dz, double[] prev, Gradient g){
+    double[][] wGrad = new double[layer.numNodes][layer.inputDim];
+    double[] dPrev = new double[layer.inputDim];
+    for(int i = 0; i < layer.numNodes; i++){
+      for(int j = 0; j < layer.inputDim; j++){
+        wGrad[i][j] = dz[i]*prev[j];
+        dPrev[j] += dz[i]*layer.weights[i][j];
+      }
+    }
+    g.wGrad.put(key, wGrad);
+    g.bGrad.put(key, dz);
+    return dPrev;
+  }
+  
+  /** Computes the gradients of the kernels and biases of a convolutional layer. With the unrolled input cols = im2col(prev) the forward pass is z = weights*cols, so the kernel gradient is dz*cols^T and the input gradient is col2im(weights^T*dz).
+  * @param layer The layer.
+  * @param key The index of the layer in the gradient.
+  * @param dz The derivative of the loss with respect to the weighted sums of the layer.
+  * @param prev The input of the layer.
+  * @param g The gradient where the results are stored.
+  * @return The derivative of the loss with respect to the input of the layer.
+  */
+  private double[] convGradient(Layer layer, int key, double[] dz, double[] prev, Gradient g){
+    double[][] cols = layer.im2col(prev);
+    double[][] dCols = new double[cols.length][cols[0].length];
+    double[][] wGrad = new double[layer.weights.length][layer.weights[0].length];
+    double[] bGrad = new double[layer.weights.length];
+    int pixels = layer.outWidth*layer.outWidth;
+    
+    for(int c = 0; c < layer.weights.length; c++){
+      for(int p = 0; p < pixels; p++)
+        bGrad[c] += dz[c*pixels + p];
+      for(int r = 0; r < cols.length; r++){
+        double s = 0.0;
+        double w = layer.weights[c][r];
+        for(int p = 0; p < pixels; p++){
+          s += dz[c*pixels + p]*cols[r][p];
+          dCols[r][p] += w*dz[c*pixels + p];
+        }
+        wGrad[c][r] = s;
+      }
+    }
+    g.wGrad.put(key, wGrad);
+    g.bGrad.put(key, bGrad);
+    return layer.col2im(dCols);
+  }
+  
   /** Computes the activations of a given layer.
   * @param layer A layer of the network to be activated.
   * @param input The input to the layer.
   * @return A double array containing the activations of each neuron in the layer.
   */
   public double[] activate(Layer layer, double[] input){
-    // returns the activations of a given layer with given input, new types of activations can be added to the end
+    // returns the activations of a given layer with given input, new types of activations can be added to applyActivation()
     
     double[] output = new double[layer.numNodes];
     
-    // Softmax activation
-    if(Objects.equals(layer.type, "Softmax")){
-      double s = 0.0;
-      for(int i = 0; i < layer.numNodes; i++){
-        output[i] = dot(layer.weights[i], input) + layer.biases[i];
-        s += Math.exp(output[i]);
-      }
-      for(int i = 0; i < layer.numNodes; i++){
-        double t = output[i];
-        output[i] = Math.exp(output[i])/s;
+    // Convolution as a matrix product of the kernels and the unrolled input patches, followed by a ReLU
+    if(layer.isConv()){
+      double[][] cols = layer.im2col(input);
+      int pixels = layer.outWidth*layer.outWidth;
+      for(int c = 0; c < layer.weights.length; c++){
+        double[] w = layer.weights[c];
+        for(int p = 0; p < pixels; p++)
+          output[c*pixels + p] = layer.biases[c];
+        for(int r = 0; r < w.length; r++){
+          double[] col = cols[r];
+          for(int p = 0; p < pixels; p++)
+            output[c*pixels + p] += w[r]*col[p];
+        }
       }
+      applyActivation(layer, output);
       return output;
-      
-      // ReLU activation
-    } else if(Objects.equals(layer.type, "ReLU")) {
-      for(int i = 0; i < layer.numNodes; i++){
-        output[i] = dot(layer.weights[i], input) + layer.biases[i];
-        output[i] = (output[i] > 0.0) ? output[i] : RELU_NEG_COEFF*output[i];
-      }      
-      return output;
-      
-      // Sigmoid activation
-    } else if(Objects.equals(layer.type, "Sigmoid")) {
-      for(int i = 0; i < layer.numNodes; i++){
-        output[i] = dot(layer.weights[i], input) + layer.biases[i];
-        output[i] = 1/(1+Math.exp(-output[i]));
-      }      
-      return output;       
     }
-    System.out.println("Node type wrong in the network.");
-    System.exit(-1);
-    return null;
+    
+    for(int i = 0; i < layer.numNodes; i++)
+      output[i] = dot(layer.weights[i], input) + layer.biases[i];
+    applyActivation(layer, output);
+    return output;
   }
 
   /** Initilizes a new Gradient object such that the resulting gradient's dimensions match the structure of the network.
@@ -187,9 +571,9 @@ public class NeuralNetwork{
   */
   public Gradient initializeGradient(){
     Gradient g = new Gradient();
-    for(int l = 0; l < layers.length; l++){
-      g.wGrad.put(l, new double[layers[l].numNodes][layers[l].inputDim]);
-      g.bGrad.put(l, new double[layers[l].numNodes]);
+    for(int l = 0; l < numParamLayers(); l++){
+      g.wGrad.put(l, new double[paramLayer(l).weights.length][paramLayer(l).weights[0].length]);
+      g.bGrad.put(l, new double[paramLayer(l).biases.length]);
     }
     return g;    
   }  
@@ -203,13 +587,21 @@ public class NeuralNetwork{
     
     double s = 0.0;
     
-    for(int l = 0; l < layers.length; l++)
-      for(int i = 0; i < layers[l].numNodes; i++){
-        for(int j = 0; j < layers[l].inputDim; j++){
-          layers[l].weights[i][j] -= lRate*g.wGrad.get(l)[i][j]/batchSize;
+    for(int l = 0; l < numParamLayers(); l++){
+      Layer layer = paramLayer(l);
+      if(!g.wGrad.containsKey(l))
+        continue;
+      double[][] gw = g.wGrad.get(l);
+      double[] gb = g.bGrad.get(l);
+      for(int i = 0; i < layer.weights.length; i++){
+        for(int j = 0; j < layer.weights[i].length; j++){
+          if(mask == null || mask[l][i][j])
+            layer.weights[i][j] -= lRate*gw[i][j]/batchSize;
         }  
-        layers[l].biases[i] -= lRate*g.bGrad.get(l)[i]/batchSize;
+        layer.biases[i] -= lRate*gb[i]/batchSize;
       }
+    }
+    version++;
   }
 
   /** Computes the gradient of the network when the loss function is the negative log propability of the output given by outputNumber.
@@ -218,99 +610,37 @@ public class NeuralNetwork{
   * @return Gradient of the loss function with respect to the weights and biases of the network.
   */
   public Gradient getGradient(double[] input, int outputNumber){
+    double[] target = new double[layers[layers.length-1].numNodes];
+    target[outputNumber] = 1.0;
+    return getGradient(input, target);
+  }
+  
+  /** Computes the gradient of the network when the loss function is the cross entropy between a target distribution and the output, -sum_i target[i]*log(output[i]).
+  * @param input The input to the network.
+  * @param target The target distribution over the outputs.
+  * @return Gradient of the loss function with respect to the weights and biases of the network.
+  */
+  public Gradient getGradient(double[] input, double[] target){
     Gradient g = new Gradient();
 
     // store the activations of the neurons for each layer
     ArrayList<double[]> activations = new ArrayList<double[]>();
-    
-    // temporary variables for the gradient values
-    HashMap<Integer, double[][]> weightGrad = new HashMap<Integer, double[][]>();
-    HashMap<Integer, double[]> biasGrad = new HashMap<Integer, double[]>();
-    
-    // copy the input to a new variable and feed forward to compute the activations
-    double[] netWorkOutput = new double[input.length];
-    for(int i = 0; i < input.length; i++) netWorkOutput[i] = input[i];
-    for(int i = 0; i < layers.length; i++) {netWorkOutput = activate(layers[i], netWorkOutput); activations.add(netWorkOutput);}
-    
-    // variables to store the backpropagation coefficients
-    double[] oldDelta = null, delta = null;
-    
-    // iterate over the layers starting from the output layer and moving towards the input layer
-    for(int l = layers.length-1; l >= 0; l--){
-      double[][] wGrad = new double[layers[l].numNodes][layers[l].inputDim];        
-      double[] bGrad = new double[layers[l].numNodes];
-      delta = new double[layers[l].numNodes];
-        
-      for(int i = 0; i < layers[l].numNodes; i++){
-        // compute delta, the first delta comes from the fact that the network loss function is log(a) where a is the activation of the last layer's neuron outputNumber
-        if(l == layers.length-1)
-          delta[outputNumber] = -1.0/(activations.get(l)[outputNumber]);        
-        else {
-          for(int r = 0; r < layers[l+1].numNodes; r++)
-            delta[i] += oldDelta[r]*getActivationsDerivative(l, r, i, activations);
-        }
-        
-        // compute the gradients for weights
-        for(int j = 0; j < layers[l].inputDim; j++){
-          if(Objects.equals(layers[l].type, "Softmax")){
-            // handle the output layer where the activation is the softmax function (the output layer only)
-            wGrad[i][j] = (i == outputNumber) ? (activations.get(l)[i]-1)*activations.get(l-1)[j] : activations.get(l)[i]*activations.get(l-1)[j];
-          } else if(Objects.equals(layers[l].type, "ReLu")) {
-            // hidden layers with ReLU activations
-            if(l > 0)
-              wGrad[i][j] = delta[i]*((activations.get(l)[i] > 0) ? activations.get(l-1)[j] : RELU_NEG_COEFF*activations.get(l-1)[j]);
-            else
-              wGrad[i][j] = delta[i]*((activations.get(l)[i] > 0) ? input[j] : input[j]*RELU_NEG_COEFF);
-          } else if(Objects.equals(layers[l].type, "Sigmoid")) {
-            // hidden layers with sigmoid activations
-            if(l > 0)
-              wGrad[i][j] = delta[i]*activations.get(l)[i]*(1-activations.get(l)[i])*activations.get(l-1)[j];
-            else
-              wGrad[i][j] = delta[i]*activations.get(l)[i]*(1-activations.get(l)[i])*input[j];
-          }
-        }
-        // compute the bias gradient for bias[i] when the activation is softmax
-        if(Objects.equals(layers[l].type, "Softmax"))
-          bGrad[i] = (i == outputNumber) ? 1-activations.get(l)[i] : activations.get(l)[i];
-        else if(Objects.equals(layers[l].type, "ReLu")) 
-          bGrad[i] = delta[i]*((activations.get(l)[i] > 0) ? 1.0 : RELU_NEG_COEFF);     
-        else if(Objects.equals(layers[l].type, "Sigmoid"))
-          bGrad[i] = delta[i]*activations.get(l)[i]*(1-activations.get(l)[i]);     
-      }
-      // update the deltas
-      oldDelta = new double[delta.length];
-      System.arraycopy( oldDelta, 0, delta, 0, delta.length );
-
-      // add computed gradients to the list
-      g.wGrad.put(l, wGrad);
-      g.bGrad.put(l, bGrad);
+    double[] a = input;
+    for(int l = 0; l < layers.length; l++){
+      a = activate(layers[l], a);
+      activations.add(a);
     }
-    return g;    
-  }
-  
-  /** Computes the derivative of the activations of the layer l+1 with respect to the activations of the layer l.
-  * @param l The number of the layer that is treated as a variable. Hence, the derivative of the activation on layer l+1 is computed.
-  * @param r The number of the neuron at layer l+1. The activation of this neuron is treated as the function.
-  * @param i the number of the neuron at layer l. The activation of this neuron is treated as the variable.
-  * @param activations. The pre-computed numerical values of the activations in the network.
-  * @return The derivative as a numerical double value.
-  */
-  private double getActivationsDerivative(int l, int r, int i, ArrayList<double[]> activations){
-    double output = 0.0;
     
-    if(Objects.equals(layers[l+1].type, "Softmax")){
-      for(int q = 0; q < layers[l+1].numNodes; q++){
-        output += layers[l+1].weights[q][i]*((r == q) ? activations.get(l+1)[r]*(1-activations.get(l+1)[r]): -activations.get(l+1)[r]*activations.get(l+1)[q]);
-      }
-    } 
-    else if(Objects.equals(layers[l+1].type, "ReLu")){
-      output = (activations.get(l+1)[r] >= 0) ? layers[l+1].weights[r][i] : layers[l+1].weights[r][i]*RELU_NEG_COEFF;
-    } 
-    else if(Objects.equals(layers[l+1].type, "Sigmoid")){
-      output = activations.get(l+1)[r]*(1-activations.get(l+1)[r])*layers[l+1].weights[r][i];
-    }
+    // for the softmax output and the cross entropy loss the derivative with respect to the weighted sum i is a[i] - target[i]
+    int top = layers.length-1;
+    double[] dz = new double[layers[top].numNodes];
+    for(int i = 0; i < dz.length; i++)
+      dz[i] = a[i] - target[i];
+    double[] dA = denseGradient(layers[top], top, dz, (top > 0) ? activations.get(top-1) : input, g);
     
-    return output;
+    // the rest of the layers from the output towards the input
+    backpropagate(input, activations, top-1, dA, g);
+    return g;    
   }
   
   /** Saves the weights and biases of the network in a file.
@@ -321,15 +651,12 @@ public class NeuralNetwork{
       File out = new File(filename);
       FileWriter fw = new FileWriter(out);
       fw.write(Integer.toString(layers.length) + "\n");
-      for(int l = 0; l < layers.length; l++){
-        fw.write(Integer.toString(layers[l].weights.length) + "\n");
-        fw.write(Integer.toString(layers[l].weights[0].length) + "\n");
-        fw.write(layers[l].type + "\n");
-        for(int i = 0; i < layers[l].weights.length; i++){
-          for(int j = 0; j < layers[l].weights[i].length; j++)
-            fw.write(Double.toString(layers[l].weights[i][j]) + "\n");
-          fw.write(Double.toString(layers[l].biases[i]) + "\n");
-        }
+      for(int l = 0; l < layers.length; l++)
+        writeLayer(fw, layers[l]);
+      // the value head is optional and follows the layers, so that files without one can still be read
+      if(valueHead != null){
+        fw.write("Value\n");
+        writeLayer(fw, valueHead);
       }
       fw.close();
     } catch(IOException e) {
@@ -338,31 +665,194 @@ public class NeuralNetwork{
     } 
   }
 
+  /** Writes a single layer in the format of saveToFile(). */
+  private void writeLayer(FileWriter fw, Layer layer) throws IOException{
+    fw.write(Integer.toString(layer.weights.length) + "\n");
+    fw.write(Integer.toString(layer.weights[0].length) + "\n");
+    fw.write(layer.type + "\n");
+    if(layer.isConv())
+      fw.write(layer.inChannels + "\n" + layer.kernel + "\n" + layer.padding + "\n" + layer.width + "\n");
+    for(int i = 0; i < layer.weights.length; i++){
+      for(int j = 0; j < layer.weights[i].length; j++)
+        fw.write(Double.toString(layer.weights[i][j]) + "\n");
+      fw.write(Double.toString(layer.biases[i]) + "\n");
+    }
+  }
+  
+  /** Reads a single layer written by writeLayer(). */
+  private Layer readLayer(BufferedReader reader) throws IOException{
+    int n = Integer.parseInt(reader.readLine());
+    int d = Integer.parseInt(reader.readLine());
+    String t = reader.readLine();
+    Layer layer;
+    if(Objects.equals(t, "Conv"))
+      layer = new Layer(n, Integer.parseInt(reader.readLine()), Integer.parseInt(reader.readLine()), Integer.parseInt(reader.readLine()), Integer.parseInt(reader.readLine()));
+    else
+      layer = new Layer(n, d, t);
+    for(int i = 0; i < layer.weights.length; i++){
+      for(int j = 0; j < layer.weights[i].length; j++)
+        layer.weights[i][j] = Double.parseDouble(reader.readLine());
+      layer.biases[i] = Double.parseDouble(reader.readLine());
+    }
+    return layer;
+  }
+
   /** Loads the weights and biases of the network from a file.
   * @param filename The name of the file to load from.
+  * @return False if the file could not be read, in which case the network must not be used.
   */
-  public void loadFromFile(String filename){
+  public boolean loadFromFile(String filename){
+    version++;
+    mask = null;
     try{
       FileReader in = new FileReader(filename);
       BufferedReader reader = new BufferedReader(in);
       
       layers = new Layer[Integer.parseInt(reader.readLine())];
-      for(int l = 0; l < layers.length; l++){
-        int n = Integer.parseInt(reader.readLine());
-        int d = Integer.parseInt(reader.readLine());
-        layers[l] = new Layer(n, d, reader.readLine());
-        for(int i = 0; i < layers[l].weights.length; i++){
-          for(int j = 0; j < layers[l].weights[i].length; j++)
-            layers[l].weights[i][j] = Double.parseDouble(reader.readLine());
-          layers[l].biases[i] = Double.parseDouble(reader.readLine());
-        }
-      }
+      for(int l = 0; l < layers.length; l++)
+        layers[l] = readLayer(reader);
+      valueHead = Objects.equals(reader.readLine(), "Value") ? readLayer(reader) : null;
+      reader.close();
     }
     catch (Exception e)
     {
       System.err.format("Exception occurred trying to read '%s'.", filename);
       e.printStackTrace();
+      return false;
     } 
+    return true;
+  }
+
+  /** Writes the structure, weights and biases of the network to a binary stream. Used for sending the network between processes, @see ParameterServer
+  * @param out The stream to write into.
+  */
+  public void writeTo(DataOutputStream out) throws IOException{
+    out.writeInt(layers.length);
+    for(int l = 0; l < layers.length; l++)
+      writeLayer(out, layers[l]);
+    out.writeBoolean(valueHead != null);
+    if(valueHead != null)
+      writeLayer(out, valueHead);
+  }
+  
+  private void writeLayer(DataOutputStream out, Layer layer) throws IOException{
+    out.writeInt(layer.weights.length);
+    out.writeInt(layer.weights[0].length);
+    out.writeUTF(layer.type);
+    if(layer.isConv()){
+      out.writeInt(layer.inChannels);
+      out.writeInt(layer.kernel);
+      out.writeInt(layer.padding);
+      out.writeInt(layer.width);
+    }
+    for(int i = 0; i < layer.weights.length; i++){
+      for(int j = 0; j < layer.weights[i].length; j++)
+        out.writeDouble(layer.weights[i][j]);
+      out.writeDouble(layer.biases[i]);
+    }
+  }
+
+  /** Magnitude pruning: sets the given fraction of the weights of each layer with the smallest absolute values to zero, and keeps them at zero in later gradient steps, @see mask. The biases are kept.
+  * @param fraction The fraction of the weights of each layer to prune, between 0 and 1.
+  * @return The number of weights that are zero after pruning.
+  */
+  public int prune(double fraction){
+    int zeros = 0;
+    mask = new boolean[numParamLayers()][][];
+    for(int l = 0; l < numParamLayers(); l++){
+      Layer layer = paramLayer(l);
+      int n = layer.weights.length*layer.weights[0].length, k = 0;
+      double[] magnitudes = new double[n];
+      for(double[] w : layer.weights)
+        for(double x : w)
+          magnitudes[k++] = Math.abs(x);
+      Arrays.sort(magnitudes);
+      int cut = (int) Math.round(fraction*n);
+      // ties at the threshold are pruned as well
+      double threshold = (cut > 0) ? magnitudes[cut-1] : -1.0;
+      mask[l] = new boolean[layer.weights.length][layer.weights[0].length];
+      for(int i = 0; i < layer.weights.length; i++)
+        for(int j = 0; j < layer.weights[i].length; j++){
+          if(Math.abs(layer.weights[i][j]) <= threshold)
+            layer.weights[i][j] = 0.0;
+          mask[l][i][j] = layer.weights[i][j] != 0.0;
+          if(!mask[l][i][j])
+            zeros++;
+        }
+    }
+    version++;
+    return zeros;
+  }
+  
+  /** @return The number of weights of the policy, not counting the biases or the value head. Comparable with SparseNetwork.nonzeros(). */
+  public int numWeights(){
+    int n = 0;
+    for(Layer layer : layers)
+      n += layer.weights.length*layer.weights[0].length;
+    return n;
+  }
+  
+  /** @return The length of the input of the network. */
+  public int numInputs(){
+    return layers[0].inputDim;
+  }
+  
+  /** @return The number of outputs of the network, one per square of the board. */
+  public int numOutputs(){
+    return layers[layers.length-1].numNodes;
+  }
+  
+  /** Converts the network to the compressed sparse row format, keeping only the nonzero weights. Only fully connected layers can be converted, and the value head is left out, since only the policy of the network player is evaluated with a sparse network.
+  * @return The sparse network, which computes the same outputs.
+  */
+  public SparseNetwork toSparse(){
+    SparseNetwork.CsrLayer[] sparse = new SparseNetwork.CsrLayer[layers.length];
+    for(int l = 0; l < layers.length; l++){
+      if(layers[l].isConv()){
+        System.out.println("Convolutional layers cannot be converted to a sparse network. Exiting.");
+        System.exit(-1);
+      }
+      sparse[l] = new SparseNetwork.CsrLayer(layers[l].weights, layers[l].biases, layers[l].type);
+    }
+    return new SparseNetwork(sparse);
+  }
+  
+  /** @return A copy of the network with its own weights and biases, @see PopulationTraining */
+  public NeuralNetwork copy(){
+    NeuralNetwork c = new NeuralNetwork(new int[] {1, 1});
+    try{
+      ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+      writeTo(new DataOutputStream(bytes));
+      c.readFrom(new DataInputStream(new ByteArrayInputStream(bytes.toByteArray())));
+    } catch(IOException e){
+      throw new RuntimeException(e);
+    }
+    return c;
+  }
+
+  /** Reads the structure, weights and biases of the network from a binary stream written by writeTo().
+  * @param in The stream to read from.
+  */
+  public void readFrom(DataInputStream in) throws IOException{
+    version++;
+    mask = null;
+    layers = new Layer[in.readInt()];
+    for(int l = 0; l < layers.length; l++)
+      layers[l] = readLayer(in);
+    valueHead = in.readBoolean() ? readLayer(in) : null;
+  }
+  
+  private Layer readLayer(DataInputStream in) throws IOException{
+    int n = in.readInt();
+    int d = in.readInt();
+    String t = in.readUTF();
+    Layer layer = Objects.equals(t, "Conv") ? new Layer(n, in.readInt(), in.readInt(), in.readInt(), in.readInt()) : new Layer(n, d, t);
+    for(int i = 0; i < layer.weights.length; i++){
+      for(int j = 0; j < layer.weights[i].length; j++)
+        layer.weights[i][j] = in.readDouble();
+      layer.biases[i] = in.readDouble();
+    }
+    return layer;
   }
 }
   
\ No newline at end of file
@@ -0,0 +1,229 @@
+import java.io.*;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Objects;
+
+/** A book of moves for the first plies of the game, consulted by the players before searching or evaluating the network, @see Player#move()
+*
+*    The positions are keyed by the hash of their canonical form, @see BoardSymmetry, so one entry covers all the rotations and reflections of a position. The move of an entry is stored in the orientation of the canonical form and mapped back to the board it is looked up for.
+*
+*    The book is built either by asking a player for the move in every position reachable within a number of plies, or from the statistics of games played between two players. It is stored as a file of fixed size records sorted by key, after a header with the dimension, the target length and the number of records. The file is memory mapped and searched with binary search, so a book is shared by all the players that use it without loading it into the heap.
+*/
+public class OpeningBook{
+
+  /** Marks the start of a book file. */
+  static final int MAGIC = 0x4f424f4b;
+  /** Size of the header and of a record (a long key and a short square) in bytes. */
+  static final int HEADER = 16, RECORD = 10;
+
+  int dim, inARow;
+  /** Number of positions in the book. */
+  int size;
+  private MappedByteBuffer buffer;
+
+  /** Opens a book file.
+  * @param filename The file written by write().
+  */
+  public OpeningBook(String filename){
+    try(RandomAccessFile f = new RandomAccessFile(filename, "r")){
+      buffer = f.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, f.length());
+    } catch(IOException e){
+      System.out.println("Cannot read the opening book '" + filename + "'. Exiting.");
+      System.exit(-1);
+    }
+    if(buffer.getInt(0) != MAGIC){
+      System.out.println("'" + filename + "' is not an opening book. Exiting.");
+      System.exit(-1);
+    }
+    dim = buffer.getInt(4);
+    inARow = buffer.getInt(8);
+    size = buffer.getInt(12);
+  }
+
+  /** Checks that the book was built for a game, and exits if not: a book of a different target length has the same keys but different moves.
+  * @param d The dimension of the game board.
+  * @param k How many in a row a player needs to win.
+  */
+  public void verify(int d, int k){
+    if(d != dim || k != inARow){
+      System.out.println("The opening book is for " + dim + "x" + dim + " with " + inARow + " in a row, not " + d + "x" + d + " with " + k + " in a row. Exiting.");
+      System.exit(-1);
+    }
+  }
+
+  /** Looks up the move of a position.
+  * @param board The state of the board.
+  * @return Pair of integers denoting the coordinates of the move, or null if the position is not in the book.
+  */
+  public int[] lookup(int[][] board){
+    if(board.length != dim)
+      return null;
+    long[] c = BoardSymmetry.canonical(board);
+    int lo = 0, hi = size - 1;
+    while(lo <= hi){
+      int mid = (lo + hi) >>> 1;
+      long key = buffer.getLong(HEADER + mid*RECORD);
+      if(key < c[0])
+        lo = mid + 1;
+      else if(key > c[0])
+        hi = mid - 1;
+      else
+        return mapBack(buffer.getShort(HEADER + mid*RECORD + 8), (int) c[1], board);
+    }
+    return null;
+  }
+
+  /** Maps a square of the canonical form back to the board.
+  * @return The coordinates, or null if the square is taken, which can only happen if two positions have the same hash.
+  */
+  private static int[] mapBack(int square, int t, int[][] board){
+    int n = board.length;
+    for(int i = 0; i < n; i++)
+      for(int j = 0; j < n; j++)
+        if(BoardSymmetry.transform(t, i, j, n) == square)
+          return (board[i][j] == 0) ? new int[]{i, j} : null;
+    return null;
+  }
+
+  /** @return The square of a move in the orientation of the canonical form of the board. */
+  private static int canonicalSquare(int[][] board, int[] move){
+    int t = (int) BoardSymmetry.canonical(board)[1];
+    return BoardSymmetry.transform(t, move[0], move[1], board.length);
+  }
+
+  /** Writes a book file.
+  * @param filename The file to write into.
+  * @param moves The canonical square of the move of each canonical hash.
+  */
+  public static void write(String filename, int dim, int inARow, HashMap<Long, Integer> moves){
+    long[] keys = new long[moves.size()];
+    int k = 0;
+    for(Long key : moves.keySet())
+      keys[k++] = key;
+    Arrays.sort(keys);
+    try(DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(filename)))){
+      out.writeInt(MAGIC);
+      out.writeInt(dim);
+      out.writeInt(inARow);
+      out.writeInt(keys.length);
+      for(long key : keys){
+        out.writeLong(key);
+        out.writeShort(moves.get(key));
+      }
+    } catch(IOException e){
+      System.err.format("Exception occurred trying to write to '%s'.", filename);
+      e.printStackTrace();
+    }
+  }
+
+  /** Builds a book by asking the players of a game for the move in every position that can be reached within a number of plies, and in which the game is still going. Player 1 is asked in the positions where X is to move and player 2 in the others. A minmax player searches the empty board too instead of moving randomly.
+  * @param game The game whose players are asked.
+  * @param plies The positions with fewer marks than this are included.
+  * @return The canonical square of the move of each canonical hash.
+  */
+  public static HashMap<Long, Integer> fromSearch(TicTacToe game, int plies){
+    HashMap<Long, Integer> moves = new HashMap<Long, Integer>();
+    ArrayList<int[][]> level = new ArrayList<int[][]>();
+    level.add(new int[game.dim][game.dim]);
+    for(int ply = 0; ply < plies && !level.isEmpty(); ply++){
+      Player p = (ply % 2 == 0) ? game.player1 : game.player2;
+      for(int[][] b : level){
+        int[] m = (p.type == 3) ? p.minmaxSearch(b) : p.move(b);
+        moves.put(BoardSymmetry.canonical(b)[0], canonicalSquare(b, m));
+      }
+
+      // the positions of the next ply that are still going, one per canonical form
+      ArrayList<int[][]> next = new ArrayList<int[][]>();
+      HashSet<Long> seen = new HashSet<Long>();
+      for(int[][] b : level)
+        for(int i = 0; i < game.dim; i++)
+          for(int j = 0; j < game.dim; j++){
+            if(b[i][j] != 0)
+              continue;
+            b[i][j] = ply % 2 + 1;
+            if(TicTacToe.checkVictory(new int[]{i, j}, game.inARow, b) < 0 && seen.add(BoardSymmetry.canonical(b)[0])){
+              int[][] c = new int[game.dim][];
+              for(int x = 0; x < game.dim; x++)
+                c[x] = b[x].clone();
+              next.add(c);
+            }
+            b[i][j] = 0;
+          }
+      level = next;
+    }
+    return moves;
+  }
+
+  /** Builds a book from games played between the players of a game. For every position of the first plies, the move with the best mean result for the player making it is chosen, among the moves that have been played at least minCount times in the position.
+  * @param game The game whose players play the games.
+  * @param numGames The number of games.
+  * @param plies The moves made on boards with fewer marks than this are counted.
+  * @param minCount The number of times a move must have been played to be chosen.
+  * @return The canonical square of the move of each canonical hash.
+  */
+  public static HashMap<Long, Integer> fromSelfPlay(TicTacToe game, int numGames, int plies, int minCount){
+    // for every canonical position and canonical square, the sum of the results and the number of games
+    HashMap<Long, HashMap<Integer, double[]>> stats = new HashMap<Long, HashMap<Integer, double[]>>();
+    for(int g = 0; g < numGames; g++){
+      GameRecord r = game.recordedPlay();
+      int[][] b = new int[game.dim][game.dim];
+      for(int i = 0; i < Math.min(plies, r.move.size()); i++){
+        int[] m = r.move.get(i);
+        int pl = r.playingAs.get(i);
+        double result = (r.outcome == 0) ? 0.5 : (r.outcome == pl) ? 1.0 : 0.0;
+        double[] s = stats.computeIfAbsent(BoardSymmetry.canonical(b)[0], k -> new HashMap<Integer, double[]>()).computeIfAbsent(canonicalSquare(b, m), k -> new double[2]);
+        s[0] += result;
+        s[1]++;
+        b[m[0]][m[1]] = pl;
+      }
+    }
+
+    HashMap<Long, Integer> moves = new HashMap<Long, Integer>();
+    for(Long key : stats.keySet()){
+      int best = -1;
+      double bestMean = -1.0;
+      for(Integer sq : stats.get(key).keySet()){
+        double[] s = stats.get(key).get(sq);
+        if(s[1] >= minCount && s[0]/s[1] > bestMean){
+          bestMean = s[0]/s[1];
+          best = sq;
+        }
+      }
+      if(best >= 0)
+        moves.put(key, best);
+    }
+    return moves;
+  }
+
+  /** Builds a book from the command line.
+  * @param args dim inARow plies search|selfplay p1 p2 file [numGames minCount]. The players are given as for a tournament, @see Tournament.Entrant, but without books.
+  */
+  public static void main(String[] args){
+    if(args.length < 7){
+      System.out.println("Usage: java OpeningBook dim inARow plies search|selfplay p1 p2 file [numGames minCount]");
+      System.exit(-1);
+    }
+    int dim = Integer.parseInt(args[0]), inARow = Integer.parseInt(args[1]), plies = Integer.parseInt(args[2]);
+    Tournament.Entrant e1 = new Tournament.Entrant(args[4]), e2 = new Tournament.Entrant(args[5]);
+    TicTacToe game = new TicTacToe(dim, inARow, e1.type, e2.type);
+    if(e1.nn != null)
+      game.player1.nn = e1.nn;
+    if(e2.nn != null)
+      game.player2.nn = e2.nn;
+    game.player1.sparse = e1.sparse;
+    game.player2.sparse = e2.sparse;
+
+    long start = System.nanoTime();
+    HashMap<Long, Integer> moves;
+    if(Objects.equals(args[3], "selfplay"))
+      moves = fromSelfPlay(game, (args.length > 7) ? Integer.parseInt(args[7]) : 10000, plies, (args.length > 8) ? Integer.parseInt(args[8]) : 10);
+    else
+      moves = fromSearch(game, plies);
+    write(args[6], dim, inARow, moves);
+    System.out.println(moves.size() + " positions written to " + args[6] + " in " + (System.nanoTime() - start)/1000000 + " ms");
+  }
+}
@@ -0,0 +1,295 @@
+import java.io.*;
+import java.net.*;
+import java.nio.channels.*;
+import java.nio.file.*;
+import java.util.ArrayList;
+import java.util.HashSet;
+
+/** A parameter server for training a neural network with several worker processes. The server holds the network and applies the gradients that the workers send, @see GradientWorker
+*
+*    The workers and the server communicate over a TCP or Unix domain socket with a small binary protocol. A worker opens with HELLO and gets back its id, the current weight version and the network. After each batch of games it sends GRADIENT with the version its gradient was computed on, and gets back whether the gradient was accepted together with the latest network. BYE (or closing the connection) leaves the training.
+*
+*    In synchronous mode the server waits until every connected worker has sent a gradient for the current version, sums them and takes one gradient step. In asynchronous mode every gradient is applied as soon as it arrives, unless it was computed on weights that are more than maxStaleness versions old, in which case it is rejected.
+*/
+public class ParameterServer{
+
+  /** Message types sent by the workers. */
+  static final byte HELLO = 'H', GRADIENT = 'G', BYE = 'B';
+  /** Replies to a GRADIENT message. */
+  static final byte ACCEPTED = 'A', REJECTED = 'R';
+
+  /** The number of pending connections the listening socket queues. */
+  static final int BACKLOG = 1024;
+
+  /** The network being trained. */
+  NeuralNetwork nn;
+  /** Number of gradient steps taken so far. Workers tag their gradients with the version they were computed on. */
+  int version = 0;
+
+  /** True if the updates are synchronous, false if bounded asynchronous. */
+  boolean synchronous;
+  /** The largest allowed difference between the current version and the version of an incoming gradient in asynchronous mode. */
+  int maxStaleness;
+  double learningRate;
+  /** The file the network is saved into after each update. */
+  String file;
+
+  /** Ids of the workers that are currently connected. */
+  HashSet<Integer> active = new HashSet<Integer>();
+  /** Ids of the workers that have sent their gradient for the current round in synchronous mode. */
+  HashSet<Integer> submitted = new HashSet<Integer>();
+  int nextWorkerId = 0;
+
+  /** The sum of the gradients received during the current round in synchronous mode. */
+  Gradient roundGrad;
+  double roundSize = 0.0;
+
+  /** Game statistics since the last update, for output. */
+  int p1Wins = 0, p2Wins = 0, games = 0;
+
+  /** Constructor.
+  * @param network The network to train.
+  * @param sync True for synchronous updates, false for bounded asynchronous updates.
+  * @param staleness The largest allowed staleness of a gradient in asynchronous mode.
+  * @param lRate The learning rate.
+  * @param f The file the weights are saved into after each update.
+  */
+  public ParameterServer(NeuralNetwork network, boolean sync, int staleness, double lRate, String f){
+    nn = network;
+    synchronous = sync;
+    maxStaleness = staleness;
+    learningRate = lRate;
+    file = f;
+    roundGrad = nn.initializeGradient();
+  }
+
+  /** Usage: ParameterServer address sync|async maxStaleness learningRate dim inARow weightsFile [localWorkers batchSize numBatches]
+  *
+  * The address is either host:port or unix:/path/to/socket. If weightsFile exists the network is loaded from it. If localWorkers is given, that many GradientWorker processes are started on this machine, alternating between playing as player 1 and player 2 against a random player.
+  */
+  public static void main(String[] args) throws Exception{
+    String address = args[0];
+    boolean sync = args[1].equals("sync");
+    int staleness = Integer.parseInt(args[2]);
+    double lRate = Double.parseDouble(args[3]);
+    int dim = Integer.parseInt(args[4]);
+    int inARow = Integer.parseInt(args[5]);
+    String f = args[6];
+
+    NeuralNetwork network = new NeuralNetwork(new int[] {dim*dim, 20, 20, dim*dim});
+    if(new File(f).exists())
+      network.loadFromFile(f);
+
+    ParameterServer server = new ParameterServer(network, sync, staleness, lRate, f);
+    ServerSocketChannel ssc = openServer(address);
+
+    ArrayList<Process> workers = new ArrayList<Process>();
+    if(args.length > 7){
+      int n = Integer.parseInt(args[7]);
+      for(int k = 0; k < n; k++){
+        String p1 = (k % 2 == 0) ? "Neural network" : "Random";
+        String p2 = (k % 2 == 0) ? "Random" : "Neural network";
+        ProcessBuilder pb = new ProcessBuilder(Paths.get(System.getProperty("java.home"), "bin", "java").toString(), "-cp", System.getProperty("java.class.path"),
+            "GradientWorker", address, Integer.toString(dim), Integer.toString(inARow), p1, p2, args[8], args[9]);
+        pb.inheritIO();
+        workers.add(pb.start());
+      }
+      // stop serving once all the local workers are done
+      new Thread(() -> {
+        for(Process p : workers){
+          try{ p.waitFor(); } catch(InterruptedException e){}
+        }
+        try{ ssc.close(); } catch(IOException e){}
+      }).start();
+    }
+
+    server.serve(ssc);
+  }
+
+  /** Parses an address of the form host:port or unix:/path/to/socket.
+  * @param address The address as a string.
+  * @return The corresponding socket address.
+  */
+  public static SocketAddress parseAddress(String address){
+    if(address.startsWith("unix:"))
+      return UnixDomainSocketAddress.of(address.substring(5));
+    int c = address.lastIndexOf(':');
+    return new InetSocketAddress(address.substring(0, c), Integer.parseInt(address.substring(c+1)));
+  }
+
+  /** Opens a listening socket at the given address. A stale Unix domain socket file is removed first.
+  * @param address The address as a string, @see parseAddress()
+  * @return The listening channel.
+  */
+  public static ServerSocketChannel openServer(String address) throws IOException{
+    SocketAddress a = parseAddress(address);
+    ServerSocketChannel ssc;
+    if(a instanceof UnixDomainSocketAddress){
+      Files.deleteIfExists(((UnixDomainSocketAddress) a).getPath());
+      ssc = ServerSocketChannel.open(StandardProtocolFamily.UNIX);
+    } else
+      ssc = ServerSocketChannel.open();
+    ssc.bind(a, BACKLOG);
+    return ssc;
+  }
+
+  /** Connects to a server at the given address.
+  * @param address The address as a string, @see parseAddress()
+  * @return The connected channel.
+  */
+  public static SocketChannel connect(String address) throws IOException{
+    SocketAddress a = parseAddress(address);
+    SocketChannel ch = SocketChannel.open((a instanceof UnixDomainSocketAddress) ? StandardProtocolFamily.UNIX : StandardProtocolFamily.INET);
+    ch.connect(a);
+    setNoDelay(ch);
+    return ch;
+  }
+
+  /** Disables Nagle's algorithm on a TCP connection so that small messages are sent right away. Does nothing for Unix domain sockets.
+  * @param ch The connected channel.
+  */
+  public static void setNoDelay(SocketChannel ch) throws IOException{
+    if(ch.getLocalAddress() instanceof InetSocketAddress)
+      ch.setOption(StandardSocketOptions.TCP_NODELAY, true);
+  }
+
+  /** Accepts workers until the channel is closed. Each worker is served in its own thread.
+  * @param ssc The listening channel.
+  */
+  public void serve(ServerSocketChannel ssc){
+    while(true){
+      SocketChannel ch;
+      try{
+        ch = ssc.accept();
+        setNoDelay(ch);
+      } catch(IOException e){
+        return;
+      }
+      Thread t = new Thread(() -> handle(ch));
+      t.setDaemon(true);
+      t.start();
+    }
+  }
+
+  /** Serves a single worker connection.
+  * @param ch The channel connected to the worker.
+  */
+  private void handle(SocketChannel ch){
+    int id = -1;
+    try{
+      DataInputStream in = new DataInputStream(new BufferedInputStream(Channels.newInputStream(ch)));
+      DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Channels.newOutputStream(ch)));
+
+      while(true){
+        byte type = in.readByte();
+        if(type == HELLO){
+          id = join();
+          out.writeInt(id);
+          writeNetwork(out);
+        } else if(type == GRADIENT){
+          int baseVersion = in.readInt();
+          double bSize = in.readDouble();
+          Gradient g = Gradient.readFrom(in);
+          int w1 = in.readInt(), w2 = in.readInt(), n = in.readInt();
+          out.writeByte(submit(id, baseVersion, g, bSize, w1, w2, n) ? ACCEPTED : REJECTED);
+          writeNetwork(out);
+        } else if(type == BYE){
+          break;
+        }
+        out.flush();
+      }
+    } catch(IOException e){
+      // the worker disconnected, handled below
+    } finally{
+      if(id >= 0)
+        leave(id);
+      try{ ch.close(); } catch(IOException e){}
+    }
+  }
+
+  /** Writes the current version and the network to a stream. The network is serialized while holding the lock so a worker never sees a half-applied update.
+  * @param out The stream to write into.
+  */
+  private void writeNetwork(DataOutputStream out) throws IOException{
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    int v;
+    synchronized(this){
+      nn.writeTo(new DataOutputStream(bytes));
+      v = version;
+    }
+    out.writeInt(v);
+    bytes.writeTo(out);
+  }
+
+  /** Registers a new worker.
+  * @return The id of the worker.
+  */
+  private synchronized int join(){
+    int id = nextWorkerId++;
+    active.add(id);
+    System.out.println("Worker " + id + " joined, " + active.size() + " workers active.");
+    return id;
+  }
+
+  /** Removes a worker. In synchronous mode the current round may complete if it was only waiting for this worker.
+  * @param id The id of the worker.
+  */
+  private synchronized void leave(int id){
+    active.remove(id);
+    System.out.println("Worker " + id + " left, " + active.size() + " workers active.");
+    if(synchronous && !submitted.isEmpty() && submitted.containsAll(active))
+      applyRound();
+  }
+
+  /** Handles a gradient sent by a worker. In synchronous mode blocks until the round the gradient belongs to is complete.
+  * @param id The id of the worker.
+  * @param baseVersion The version of the weights that the gradient was computed on.
+  * @param g The gradient, a sum over bSize moves.
+  * @param bSize The number of moves in the gradient.
+  * @param w1 Number of player 1 wins in the batch.
+  * @param w2 Number of player 2 wins in the batch.
+  * @param n Number of games in the batch.
+  * @return True if the gradient was used, false if it was rejected as stale.
+  */
+  private synchronized boolean submit(int id, int baseVersion, Gradient g, double bSize, int w1, int w2, int n){
+    if(synchronous ? baseVersion != version : version - baseVersion > maxStaleness)
+      return false;
+
+    p1Wins += w1; p2Wins += w2; games += n;
+
+    if(!synchronous){
+      nn.gradientStep(g, learningRate, bSize);
+      update();
+      return true;
+    }
+
+    roundGrad.addToGradient(g, 1.0);
+    roundSize += bSize;
+    submitted.add(id);
+    if(submitted.containsAll(active))
+      applyRound();
+
+    while(version == baseVersion){
+      try{ wait(); } catch(InterruptedException e){ Thread.currentThread().interrupt(); break; }
+    }
+    return true;
+  }
+
+  /** Takes the gradient step with the sum of the gradients of the current round and starts a new round. */
+  private void applyRound(){
+    nn.gradientStep(roundGrad, learningRate, roundSize);
+    roundGrad = nn.initializeGradient();
+    roundSize = 0.0;
+    submitted.clear();
+    update();
+    notifyAll();
+  }
+
+  /** Bumps the version, saves the network and outputs some statistics. */
+  private void update(){
+    version++;
+    nn.saveToFile(file);
+    System.out.println(version + " player 1 wins:" + p1Wins + ", draws: " + (games-p1Wins-p2Wins) + ", player 2 wins: " + p2Wins);
+    p1Wins = 0; p2Wins = 0; games = 0;
+  }
+}
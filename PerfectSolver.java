@@ -0,0 +1,160 @@
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+
+/** Solves a small game completely: the value of every reachable position under perfect play and the moves that achieve it. Used as the teacher of NNTrainer.distill().
+*
+*    The values are computed by minimax over the positions reachable from the empty board, memoized by the canonical hash of the position, @see BoardSymmetry, so the rotations and reflections of a position are solved once. A faster win is preferred to a slower one and a slower loss to a faster one, so the optimal moves of a won position make progress towards the win. The hashes are exact only on boards of at most BoardSymmetry.MAX_EXACT_SQUARES squares, and the number of positions grows quickly with the size of the board, so in practice the solver is for 3x3 and 4x4 boards.
+*/
+public class PerfectSolver{
+
+  /** The score of a win on the next move. A win in n more plies scores WIN-n, a loss -(WIN-n) and a draw 0. */
+  static final int WIN = 1000;
+
+  int dim, inARow;
+
+  /** The score of each position for the player to move, keyed by the canonical hash. */
+  private HashMap<Long, Integer> memo = new HashMap<Long, Integer>();
+
+  /** A position that is still going, labelled with its perfect play. */
+  static class Position{
+    /** The board in the format of the network input, @see NeuralNetwork#formatInput() */
+    double[] input;
+    /** The player to move, 1 or 2. */
+    int toMove;
+    /** The outcome under perfect play for the player to move: -1, 0 or 1. */
+    int value;
+    /** The squares i*dim+j of the moves that achieve the best score. */
+    int[] optimal;
+
+    /** @return The uniform distribution over the optimal moves, the target of the policy. */
+    double[] target(int squares){
+      double[] t = new double[squares];
+      for(int m : optimal)
+        t[m] = 1.0/optimal.length;
+      return t;
+    }
+  }
+
+  /** Constructor.
+  * @param dimension The dimension of the game board.
+  * @param targetLength How many in a row a player needs to win.
+  */
+  public PerfectSolver(int dimension, int targetLength){
+    if(dimension*dimension > BoardSymmetry.MAX_EXACT_SQUARES){
+      System.out.println("The board is too large to be solved. Exiting.");
+      System.exit(-1);
+    }
+    dim = dimension;
+    inARow = targetLength;
+  }
+
+  /** @return The number of positions solved so far, up to symmetry. */
+  public int size(){
+    return memo.size();
+  }
+
+  /** Computes the score of a position for the player to move.
+  * @param board The board. Restored before returning.
+  * @param toMove The player to move.
+  * @return The score, @see WIN
+  */
+  public int score(int[][] board, int toMove){
+    long key = BoardSymmetry.canonical(board)[0];
+    Integer s = memo.get(key);
+    if(s != null)
+      return s;
+
+    int best = Integer.MIN_VALUE;
+    boolean full = true;
+    for(int i = 0; i < dim && best < WIN; i++)
+      for(int j = 0; j < dim && best < WIN; j++){
+        if(board[i][j] != 0)
+          continue;
+        full = false;
+        best = Math.max(best, moveScore(board, toMove, i, j));
+      }
+    if(full)
+      best = 0;
+    memo.put(key, best);
+    return best;
+  }
+
+  /** @return The score of a move for the player making it. */
+  private int moveScore(int[][] board, int toMove, int i, int j){
+    board[i][j] = toMove;
+    int r = TicTacToe.checkVictory(new int[]{i, j}, inARow, board);
+    int s;
+    if(r == 1)
+      s = WIN;
+    else{
+      int opp = -score(board, 3 - toMove);
+      // one ply further away from the end of the game
+      s = (opp > 0) ? opp - 1 : (opp < 0) ? opp + 1 : 0;
+    }
+    board[i][j] = 0;
+    return s;
+  }
+
+  /** Labels a position with its perfect play.
+  * @param board The board, on which the game is still going. Restored before returning.
+  * @param toMove The player to move.
+  * @return The labelled position.
+  */
+  public Position label(int[][] board, int toMove){
+    Position p = new Position();
+    p.input = NeuralNetwork.formatInput(board);
+    p.toMove = toMove;
+    int best = Integer.MIN_VALUE, n = 0;
+    int[] scores = new int[dim*dim];
+    for(int i = 0; i < dim; i++)
+      for(int j = 0; j < dim; j++)
+        if(board[i][j] == 0){
+          scores[i*dim + j] = moveScore(board, toMove, i, j);
+          best = Math.max(best, scores[i*dim + j]);
+        } else
+          scores[i*dim + j] = Integer.MIN_VALUE;
+    for(int c = 0; c < dim*dim; c++)
+      if(scores[c] == best)
+        n++;
+    p.optimal = new int[n];
+    n = 0;
+    for(int c = 0; c < dim*dim; c++)
+      if(scores[c] == best)
+        p.optimal[n++] = c;
+    p.value = Integer.signum(best);
+    return p;
+  }
+
+  /** Enumerates and labels every position that can be reached from the empty board and on which the game is still going. Symmetric positions are all included, since the network does not know about the symmetries.
+  * @return The labelled positions.
+  */
+  public ArrayList<Position> positions(){
+    ArrayList<Position> out = new ArrayList<Position>();
+    HashSet<Long> seen = new HashSet<Long>();
+    enumerate(new int[dim][dim], 1, seen, out);
+    return out;
+  }
+
+  private void enumerate(int[][] board, int toMove, HashSet<Long> seen, ArrayList<Position> out){
+    if(!seen.add(BoardSymmetry.hash(board, 0)))
+      return;
+    boolean full = true;
+    for(int i = 0; i < dim; i++)
+      for(int j = 0; j < dim; j++)
+        if(board[i][j] == 0)
+          full = false;
+    if(full)
+      return;
+    out.add(label(board, toMove));
+    for(int i = 0; i < dim; i++)
+      for(int j = 0; j < dim; j++){
+        if(board[i][j] != 0)
+          continue;
+        board[i][j] = toMove;
+        if(TicTacToe.checkVictory(new int[]{i, j}, inARow, board) != 1)
+          enumerate(board, 3 - toMove, seen, out);
+        board[i][j] = 0;
+      }
+  }
+}
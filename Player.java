@@ -7,12 +7,44 @@ import java.util.Scanner;
 class Player{
 
 
+  /** The largest size of the node pool of the MCTS player, @see initializeMCTS() */
+  static final int MCTS_NODES = 1 << 20;
+  /** The largest size of the transposition table of the proof number player, @see initializeProofSearch() */
+  static final int PROOF_TABLE_SIZE = 1 << 20;
+  
   /** Variable that keeps track of how the player is controlled. */
   int type;
   
   /** If the player is controlled by a neural network, this field is used to store the network.*/
   NeuralNetwork nn = null;
   
+  /** If set, the network moves are evaluated with this pruned network instead of the field nn, @see SparseNetwork */
+  SparseNetwork sparse = null;
+  
+  /** If set, the network moves are evaluated through this batcher instead of the field nn, @see MoveBatcher */
+  MoveBatcher batcher = null;
+  
+  /** If set, the network outputs are looked up from this cache before evaluating the network, @see PolicyCache */
+  PolicyCache cache = null;
+  
+  /** Keeps the first layer of the network up to date between moves, @see NNAccumulator */
+  NNAccumulator accumulator = null;
+  
+  
+  /** If the player is of type "MCTS", the search used for choosing the moves. @see MCTS */
+  MCTS mcts = null;
+  
+  /** If the player is of type "Value search", the search used for choosing the moves. @see ValueSearch */
+  ValueSearch valueSearch = null;
+  
+  /** If the player is of type "Proof number", the solver used for finding forced wins. @see ProofNumberSearch */
+  ProofNumberSearch proofSearch = null;
+  
+  /** If set, the network moves are restricted to the candidate moves it gives, @see CandidateMoves */
+  CandidateMoves candidates = null;
+  
+  /** If set, the moves of the positions in this book are played without searching or evaluating the network, @see OpeningBook */
+  OpeningBook book = null;
   
   /** Variable for the minmax player for knowing how many to get in a row to win/lose.*/
   int minMaxInARow = 0;
@@ -20,7 +52,7 @@ class Player{
   int minMaxPlayer;
   
   /** Constructor. 
-  * @param typeStr The type of the player as a string. Possibilities are "Human", "Neural Network, "Random" and "Minmax".
+  * @param typeStr The type of the player as a string. Possibilities are "Human", "Neural Network, "Random", "Minmax", "MCTS", "Value search" and "Proof number".
   */
   public Player(String typeStr){
     if(Objects.equals(typeStr, "Human")){
@@ -31,6 +63,12 @@ class Player{
       type = 2;
     } else if (Objects.equals(typeStr, "Minmax")){
       type = 3;
+    } else if (Objects.equals(typeStr, "MCTS")){
+      type = 4;
+    } else if (Objects.equals(typeStr, "Value search")){
+      type = 5;
+    } else if (Objects.equals(typeStr, "Proof number")){
+      type = 6;
     }
   }
   
@@ -50,20 +88,90 @@ class Player{
     minMaxPlayer = pl;
   }
   
+  /** If the player is of type "MCTS", this method has to be called in order to initialize the search. The moves are searched with the priors of the network in the field nn, which can be initialized or loaded separately, or with uniform priors if there is no network.
+  * @param dim The dimension of the game board.
+  * @param inARow How many consecutive X's or O's are needed to win the game.
+  * @param playouts The largest number of playouts per move.
+  * @param millis The largest time spent per move in milliseconds.
+  * @param threads The number of threads running playouts in parallel.
+  */
+  public void initializeMCTS(int dim, int inARow, int playouts, long millis, int threads){
+    // a playout adds at most one node per square, and the tree is kept between moves until it fills half of the pool
+    mcts = new MCTS(dim, inARow, playouts, millis, threads, (int) Math.min(MCTS_NODES, 2L*playouts*dim*dim + 1));
+    if(candidates != null)
+      mcts.radius = candidates.radius;
+  }
+  
+  /** If the player is of type "Value search", this method has to be called in order to initialize the search. The positions are evaluated with the value head of the network in the field nn, which has to be loaded separately.
+  * @param dim The dimension of the game board.
+  * @param inARow How many consecutive X's or O's are needed to win the game.
+  * @param depth How many moves ahead the search looks.
+  */
+  public void initializeValueSearch(int dim, int inARow, int depth){
+    valueSearch = new ValueSearch(dim, inARow, depth);
+    if(candidates != null)
+      valueSearch.radius = candidates.radius;
+  }
+  
+  /** If the player is of type "Proof number", this method has to be called in order to initialize the solver. On large boards the solver only looks for wins by continuous threats near the marks, on small boards it considers every move.
+  * @param dim The dimension of the game board.
+  * @param inARow How many consecutive X's or O's are needed to win the game.
+  * @param maxNodes The largest number of positions searched per move.
+  */
+  public void initializeProofSearch(int dim, int inARow, long maxNodes){
+    boolean large = dim >= TicTacToe.CANDIDATE_MIN_DIM;
+    // a search stores at most one entry per expanded position, and the table is kept between moves
+    proofSearch = new ProofNumberSearch(dim, inARow, large ? CandidateMoves.DEFAULT_RADIUS : dim, maxNodes, (int) Math.min(PROOF_TABLE_SIZE, 2*maxNodes));
+    proofSearch.threatsOnly = large;
+  }
+  
+  /** Restricts the moves of the player to the empty squares near the marks on the board, and to the forced responses to threats, @see CandidateMoves. The network moves are masked to the candidates, and the searches generate only the candidates.
+  * @param dim The dimension of the game board.
+  * @param inARow How many consecutive X's or O's are needed to win the game.
+  * @param radius The distance from the marks within which the empty squares are candidates.
+  */
+  public void initializeCandidates(int dim, int inARow, int radius){
+    candidates = new CandidateMoves(dim, inARow, radius);
+    if(mcts != null)
+      mcts.radius = radius;
+    if(valueSearch != null)
+      valueSearch.radius = radius;
+  }
+  
   /** An umbrella method that the TicTacToe object can call to get a move regardless of the player type.
   *@param board The state of the board at the beginning of the turn for this player.
   *@return Pair of integers denoting the coordinates of the next move.
   */
   public int[] move(int[][] board){
+    // the human and random players do not search, so they have no use for a book
+    if(book != null && type != 0 && type != 2){
+      int[] m = book.lookup(board);
+      if(m != null)
+        return m;
+    }
     switch(type){
       case 0: return humanMove(board);
       case 1: return nnMove(board);
       case 2: return randomMove(board);
       case 3: return minmaxMove(board);
+      case 4: return mcts.move(board, nn);
+      case 5: return valueSearch.move(board, nn);
+      case 6: return proofMove(board);
     }
     return null;
   }
   
+  /** The move method for a proof number player. Plays a forced win if the solver finds one, otherwise falls back to the network if the player has one and to the strongest candidate move if not.
+  * @param board The state of the board before the move.
+  * @return Pair of integers denoting the coordinates of the next move.
+  */
+  public int[] proofMove(int[][] board){
+    int[] m = proofSearch.move(board);
+    if(m != null)
+      return m;
+    return (nn != null) ? nnMove(board) : proofSearch.heuristicMove(board);
+  }
+  
   /** The move method for a random player. Picks an available square at random and returns that as the move.
   * @param board The state of the board before the move.
   * @return Pair of integers denoting the coordinates of the next move.
@@ -101,18 +209,43 @@ class Player{
   * @return Pair of integers denoting the coordinates of the next move.
   */
   public int[] nnMove(int[][] board){
-    if(nn == null){
+    if(nn == null && batcher == null && sparse == null){
       System.out.println("Neural network not initialized. Exiting.");
       System.exit(-1);
     } 
     
-    // format the input to a neural network friendly format
-    double[] input = NeuralNetwork.formatInput(board);
-    
-      
-    double[] output = nn.feedForward(input);
+    double[] output;
+    if(batcher != null)
+      // format the input to a neural network friendly format
+      output = batcher.feedForward(NeuralNetwork.formatInput(board));
+    else if(sparse != null)
+      output = sparse.feedForward(NeuralNetwork.formatInput(board));
+    else if(cache != null)
+      output = cache.feedForward(nn, board);
+    else if(!nn.supportsIncremental())
+      output = nn.feedForward(NeuralNetwork.formatInput(board));
+    else {
+      // only the squares that changed since the previous move are updated in the first layer
+      if(accumulator == null || accumulator.nn != nn || accumulator.board.length != board.length)
+        accumulator = new NNAccumulator(nn, board.length);
+      accumulator.sync(board);
+      output = accumulator.feedForward();
+    }
       
-    // condition the distribution "output" to legal moves by setting the probability of illegal moves to 0 and normalizing
+    maskIllegal(output, board);
+    maskCandidates(output, board);
+    
+    // sample from the conditioned distribution
+    int[] move = nnSample(output, board.length);
+    
+    return move;
+  }
+  
+  /** Conditions the distribution given by the network to legal moves by setting the probability of illegal moves to 0 and normalizing.
+  * @param output The output of the network. Modified in place.
+  * @param board The state of the board the output was computed from.
+  */
+  public static void maskIllegal(double[] output, int[][] board){
     double d = 0.0;
     for(int i = 0; i < board.length; i++)
       for(int j = 0; j < board.length; j++){
@@ -123,11 +256,31 @@ class Player{
       
     for(int i = 0; i < output.length; i++)
       output[i] /= d;
-    
-    // sample from the conditioned distribution
-    int[] move = nnSample(output, board.length);
-    
-    return move;
+  }
+  
+  /** Restricts the distribution given by the network to the candidate moves, if the player has them.
+  * @param output The output of the network, conditioned on legal moves. Modified in place.
+  * @param board The state of the board the output was computed from.
+  */
+  public void maskCandidates(double[] output, int[][] board){
+    maskCandidates(output, board, candidates);
+  }
+  
+  /** Restricts the distribution given by the network to the given candidate moves. Used when the player plays several games at once, each with its own candidates, @see VectorizedGames
+  * @param output The output of the network, conditioned on legal moves. Modified in place.
+  * @param board The state of the board the output was computed from.
+  * @param candidates The candidate moves following this board, or null for none.
+  */
+  public static void maskCandidates(double[] output, int[][] board, CandidateMoves candidates){
+    if(candidates == null)
+      return;
+    int marks = 0;
+    for(int i = 0; i < board.length; i++)
+      for(int j = 0; j < board.length; j++)
+        if(board[i][j] != 0)
+          marks++;
+    candidates.sync(board);
+    candidates.mask(output, marks % 2 + 1);
   }
   
   /** Samples from a discrete distribution representing the board.
@@ -160,17 +313,27 @@ class Player{
   */
   public int[] minmaxMove(int[][] board){
     
-    // copy the board to a new variable so we do not mess the actual board
-    // also check if the board is empty - if yes, make a random move and save time (this is not optimal, but better for training the network)
+    // check if the board is empty - if yes, make a random move and save time (this is not optimal, but better for training the network)
+    // an opening book, if there is one, has already been consulted in move()
     int s = 0;
-    int[][] newBoard = new int[board.length][board.length];
     for(int i = 0; i < board.length; i++)
-      for(int j = 0; j < board.length; j++){
-        newBoard[i][j] = board[i][j];
+      for(int j = 0; j < board.length; j++)
         s += board[i][j];
-      }
     if(s == 0)
       return randomMove(board);
+    return minmaxSearch(board);
+  }
+  
+  /** Searches the best move with minmax, also on an empty board. Used by minmaxMove() and for building opening books, @see OpeningBook
+  * @param board The state of the board before the move.
+  * @return Pair of integers denoting the coordinates of the next move.
+  */
+  public int[] minmaxSearch(int[][] board){
+    // copy the board to a new variable so we do not mess the actual board
+    int[][] newBoard = new int[board.length][board.length];
+    for(int i = 0; i < board.length; i++)
+      for(int j = 0; j < board.length; j++)
+        newBoard[i][j] = board[i][j];
       
     // stores the value of the best found move
     int maxVal = -2;
@@ -0,0 +1,141 @@
+import java.util.Arrays;
+
+/** A bounded cache of network outputs keyed by the canonical form of the board, @see BoardSymmetry
+*
+*    The network is evaluated on the canonical form of the board and the output is mapped back to the original orientation, so all the rotations and reflections of a position share one entry. The cache remembers the weight version of the network it was filled with and is cleared when the network changes. When the cache is full, entries are evicted with the CLOCK algorithm.
+*/
+public class PolicyCache{
+
+  /** Maximum number of entries. */
+  int capacity;
+  /** Keys and values of the entries, and the CLOCK reference bits. */
+  private long[] entryKey;
+  private double[][] entryValue;
+  private boolean[] referenced;
+  private int size = 0;
+  /** Position of the CLOCK hand. */
+  private int hand = 0;
+
+  /** Open addressing hash table from keys to entries. Stores the entry index plus one, 0 marks an empty slot. */
+  private int[] table;
+  private int mask;
+
+  /** The network this cache belongs to and its weight version when the cache was filled. */
+  private NeuralNetwork nn = null;
+  private int version;
+
+  /** Counters for the cache statistics. */
+  long hits = 0, misses = 0, evictions = 0;
+
+  /** Constructor.
+  * @param cap Maximum number of cached outputs.
+  */
+  public PolicyCache(int cap){
+    capacity = cap;
+    entryKey = new long[cap];
+    entryValue = new double[cap][];
+    referenced = new boolean[cap];
+    int t = 1;
+    while(t < 2*cap)
+      t *= 2;
+    table = new int[t];
+    mask = t - 1;
+  }
+
+  /** Computes the output of the network for a board, using a cached output if one exists.
+  * @param network The network.
+  * @param board The board as given to Player.nnMove().
+  * @return Output of the network. The caller may modify the returned array.
+  */
+  public synchronized double[] feedForward(NeuralNetwork network, int[][] board){
+    if(network != nn || network.version != version){
+      clear();
+      nn = network;
+      version = network.version;
+    }
+
+    long[] c = BoardSymmetry.canonical(board);
+    int t = (int) c[1];
+    double[] v = get(c[0]);
+    if(v != null){
+      hits++;
+    } else {
+      misses++;
+      v = network.feedForward(NeuralNetwork.formatInput(BoardSymmetry.apply(board, t)));
+      put(c[0], v);
+    }
+    return BoardSymmetry.mapBack(v, t, board.length);
+  }
+
+  /** @return The fraction of lookups that hit the cache. */
+  public synchronized double hitRate(){
+    return (hits + misses == 0) ? 0.0 : hits/(double) (hits + misses);
+  }
+
+  /** Removes all the entries. */
+  public synchronized void clear(){
+    Arrays.fill(table, 0);
+    Arrays.fill(entryValue, null);
+    Arrays.fill(referenced, false);
+    size = 0;
+    hand = 0;
+  }
+
+  private int slot(long key){
+    long h = key * 0x9E3779B97F4A7C15L;
+    return (int) (h >>> 32) & mask;
+  }
+
+  private double[] get(long key){
+    for(int s = slot(key); table[s] != 0; s = (s+1) & mask){
+      int e = table[s] - 1;
+      if(entryKey[e] == key){
+        referenced[e] = true;
+        return entryValue[e];
+      }
+    }
+    return null;
+  }
+
+  private void put(long key, double[] value){
+    int e;
+    if(size < capacity){
+      e = size++;
+    } else {
+      // CLOCK: advance the hand past recently used entries, clearing their reference bits
+      while(referenced[hand]){
+        referenced[hand] = false;
+        hand = (hand+1) % capacity;
+      }
+      e = hand;
+      hand = (hand+1) % capacity;
+      remove(entryKey[e]);
+      evictions++;
+    }
+    entryKey[e] = key;
+    entryValue[e] = value;
+    referenced[e] = false;
+
+    int s = slot(key);
+    while(table[s] != 0)
+      s = (s+1) & mask;
+    table[s] = e + 1;
+  }
+
+  /** Removes a key from the hash table, shifting back the entries that follow it so that linear probing still finds them. */
+  private void remove(long key){
+    int s = slot(key);
+    while(entryKey[table[s]-1] != key)
+      s = (s+1) & mask;
+    table[s] = 0;
+    for(int n = (s+1) & mask; table[n] != 0; n = (n+1) & mask){
+      int home = slot(entryKey[table[n]-1]);
+      // move the entry to the hole if the hole lies between its home slot and its current slot
+      if(((n - home) & mask) >= ((n - s) & mask)){
+        table[s] = table[n];
+        table[n] = 0;
+        s = n;
+      }
+    }
+  }
+}
@@ -0,0 +1,224 @@
+import java.util.ArrayList;
+import java.util.Locale;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadLocalRandom;
+
+/** Population based training: several networks are trained at once on all the cores, each with its own learning rate, batch size and draw modifier, and the hyperparameters of the networks that do well spread through the population instead of being picked by hand as in NNTrainer.main().
+*
+*    A generation consists of a number of training batches by every member in parallel. In each batch the member plays against itself, against a copy of another member taken at the start of the generation, or against a random player, and is trained on its own moves as in NNTrainer.train(). After the generation the members and the anchors Random and Minmax play a round robin, @see Tournament, and the league table of their Elo ratings is printed. Every EXPLOIT_INTERVAL generations the bottom quarter of the members is replaced with copies of members of the top quarter (exploit), whose hyperparameters are then multiplied by 0.8 or 1.2 at random (explore).
+*/
+public class PopulationTraining{
+
+  /** The number of training batches of every member per generation. */
+  static final int BATCHES_PER_GENERATION = 50;
+  /** How often the population is exploited and explored, in generations. */
+  static final int EXPLOIT_INTERVAL = 2;
+  /** The fraction of the population replaced at a time, and the fraction it is copied from. */
+  static final double EXPLOIT_FRACTION = 0.25;
+  /** The factors the hyperparameters are perturbed by. */
+  static final double[] PERTURBATIONS = {0.8, 1.2};
+  /** The number of games of each pair in the round robin. */
+  static final int LEAGUE_GAMES = 100;
+  /** The players every member is rated against. Minmax only takes part on boards of at most MINMAX_SQUARES squares, where its search is fast enough. */
+  static final String[] ANCHORS = {"Random", "Minmax"};
+  static final int MINMAX_SQUARES = 9;
+  /** The ranges of the initial hyperparameters. The learning rate is drawn log-uniformly. */
+  static final double MIN_LEARNING_RATE = .01, MAX_LEARNING_RATE = .3;
+  static final int MIN_BATCH_SIZE = 100, MAX_BATCH_SIZE = 1000;
+  static final double MIN_DRAW_MOD = 0.0, MAX_DRAW_MOD = 1.0;
+
+  int dim, inARow;
+  ArrayList<Member> population = new ArrayList<Member>();
+
+  /** The anchors of the league and their ratings in the latest round robin. */
+  String[] anchors;
+  double[] anchorElo;
+
+  private ExecutorService pool;
+  private Tournament league;
+
+  /** A network of the population together with its hyperparameters. */
+  static class Member{
+    String name;
+    NeuralNetwork nn;
+    double learningRate, drawMod;
+    int batchSize;
+    /** The Elo rating of the latest round robin, relative to the random player. */
+    double elo = 0.0;
+    /** The names of the members this one was copied from, most recent first. */
+    String lineage = "";
+
+    public String toString(){
+      return String.format(Locale.ROOT, "%-4s %+6.0f  lr %.4f  batch %4d  drawMod %.3f  %s", name, elo, learningRate, batchSize, drawMod, lineage);
+    }
+  }
+
+  /** Constructor. Creates the population with random networks and hyperparameters.
+  * @param dimension The dimension of the game board.
+  * @param targetLength How many in a row a player needs to win.
+  * @param size The number of members.
+  * @param threads The number of threads the members are trained and rated on.
+  */
+  public PopulationTraining(int dimension, int targetLength, int size, int threads){
+    dim = dimension;
+    inARow = targetLength;
+    anchors = (dim*dim <= MINMAX_SQUARES) ? ANCHORS : new String[] {ANCHORS[0]};
+    anchorElo = new double[anchors.length];
+    ThreadLocalRandom rnd = ThreadLocalRandom.current();
+    for(int k = 0; k < size; k++){
+      Member m = new Member();
+      m.name = "m" + k;
+      m.nn = new NeuralNetwork(new int[] {dim*dim, 20, 20, dim*dim});
+      m.learningRate = MIN_LEARNING_RATE*Math.pow(MAX_LEARNING_RATE/MIN_LEARNING_RATE, rnd.nextDouble());
+      m.batchSize = rnd.nextInt(MIN_BATCH_SIZE, MAX_BATCH_SIZE + 1);
+      m.drawMod = rnd.nextDouble(MIN_DRAW_MOD, MAX_DRAW_MOD);
+      population.add(m);
+    }
+    pool = Executors.newFixedThreadPool(threads, r -> { Thread t = new Thread(r, "PopulationTraining"); t.setDaemon(true); return t; });
+    league = new Tournament(dim, inARow, LEAGUE_GAMES, threads);
+    league.sprt = false;
+  }
+
+  /** Trains the population for a number of generations.
+  * @param generations The number of generations.
+  */
+  public void run(int generations){
+    for(int gen = 1; gen <= generations; gen++){
+      long start = System.nanoTime();
+      // the opponents are copies, so that the members can be trained at the same time
+      ArrayList<NeuralNetwork> snapshots = new ArrayList<NeuralNetwork>();
+      for(Member m : population)
+        snapshots.add(m.nn.copy());
+
+      ArrayList<Future<?>> tasks = new ArrayList<Future<?>>();
+      for(int k = 0; k < population.size(); k++){
+        final int self = k;
+        tasks.add(pool.submit(() -> train(population.get(self), self, snapshots)));
+      }
+      for(Future<?> f : tasks){
+        try{ f.get(); } catch(Exception e){ throw new RuntimeException(e); }
+      }
+
+      long trained = System.nanoTime();
+      rate();
+      System.out.println(String.format(Locale.ROOT, "Generation %d: training %.1f s, league %.1f s", gen, (trained - start)/1e9, (System.nanoTime() - trained)/1e9));
+      printLeague();
+      if(gen % EXPLOIT_INTERVAL == 0 && gen < generations)
+        exploitAndExplore();
+    }
+  }
+
+  /** Trains a member for a generation. Each batch is played with the member on a random side against a random opponent: itself, another member or the random player.
+  * @param m The member.
+  * @param self The index of the member in the population.
+  * @param snapshots The networks of the members at the start of the generation.
+  */
+  private void train(Member m, int self, ArrayList<NeuralNetwork> snapshots){
+    ThreadLocalRandom rnd = ThreadLocalRandom.current();
+    for(int b = 0; b < BATCHES_PER_GENERATION; b++){
+      int opponent = rnd.nextInt(snapshots.size() + 1);
+      int side = rnd.nextInt(2) + 1;
+      TicTacToe game;
+      if(opponent == self){
+        game = new TicTacToe(dim, inARow, "Neural network", "Neural network");
+        game.player1.nn = m.nn;
+        game.player2.nn = m.nn;
+        side = 0;
+      } else {
+        String other = (opponent < snapshots.size()) ? "Neural network" : "Random";
+        game = (side == 1) ? new TicTacToe(dim, inARow, "Neural network", other) : new TicTacToe(dim, inARow, other, "Neural network");
+        Player own = (side == 1) ? game.player1 : game.player2;
+        Player opp = (side == 1) ? game.player2 : game.player1;
+        own.nn = m.nn;
+        if(opponent < snapshots.size())
+          opp.nn = snapshots.get(opponent);
+      }
+
+      ArrayList<GameRecord> gameRecords = NNTrainer.playBatch(game, m.batchSize, m.drawMod);
+      Gradient grad = m.nn.initializeGradient();
+      double bSize = NNTrainer.accumulateGradient(m.nn, gameRecords, grad, dim, 1.0, -1.0, m.drawMod, side);
+      if(bSize > 0)
+        m.nn.gradientStep(grad, m.learningRate, bSize);
+    }
+  }
+
+  /** Plays the round robin of the members and the anchors, and updates the ratings of the members. */
+  private void rate(){
+    ArrayList<Tournament.Entrant> entrants = new ArrayList<Tournament.Entrant>();
+    for(Member m : population)
+      entrants.add(new Tournament.Entrant(m.name, m.nn));
+    for(String a : anchors)
+      entrants.add(new Tournament.Entrant(a));
+
+    ArrayList<Tournament.Match> matches = new ArrayList<Tournament.Match>();
+    for(int i = 0; i < entrants.size(); i++)
+      for(int j = i+1; j < entrants.size(); j++)
+        matches.add(league.play(entrants.get(i), entrants.get(j)));
+    double[] elo = Tournament.ratings(entrants, matches);
+
+    // relative to the random player, so that the ratings of different generations can be compared
+    double base = elo[population.size()];
+    for(int k = 0; k < population.size(); k++)
+      population.get(k).elo = elo[k] - base;
+    for(int a = 0; a < anchors.length; a++)
+      anchorElo[a] = elo[population.size() + a] - base;
+  }
+
+  /** @return The members sorted by rating, best first. */
+  public ArrayList<Member> ranking(){
+    ArrayList<Member> r = new ArrayList<Member>(population);
+    r.sort((a, b) -> Double.compare(b.elo, a.elo));
+    return r;
+  }
+
+  /** Prints the members and the anchors sorted by rating. */
+  public void printLeague(){
+    ArrayList<Member> r = ranking();
+    boolean[] printed = new boolean[anchors.length];
+    for(int k = 0; k <= r.size(); k++){
+      // the anchors are listed among the members at their ratings
+      for(int a = 0; a < anchors.length; a++)
+        if(!printed[a] && (k == r.size() || anchorElo[a] >= r.get(k).elo)){
+          System.out.println(String.format(Locale.ROOT, "  %-4s %+6.0f", anchors[a], anchorElo[a]));
+          printed[a] = true;
+        }
+      if(k < r.size())
+        System.out.println("  " + r.get(k));
+    }
+  }
+
+  /** Replaces the worst members with perturbed copies of the best ones. */
+  private void exploitAndExplore(){
+    ThreadLocalRandom rnd = ThreadLocalRandom.current();
+    ArrayList<Member> r = ranking();
+    int n = Math.max(1, (int) (EXPLOIT_FRACTION*r.size()));
+    for(int k = r.size() - n; k < r.size(); k++){
+      Member worse = r.get(k), better = r.get(rnd.nextInt(n));
+      worse.nn = better.nn.copy();
+      worse.learningRate = better.learningRate*PERTURBATIONS[rnd.nextInt(PERTURBATIONS.length)];
+      worse.batchSize = Math.max(MIN_BATCH_SIZE/2, (int) Math.round(better.batchSize*PERTURBATIONS[rnd.nextInt(PERTURBATIONS.length)]));
+      worse.drawMod = Math.min(MAX_DRAW_MOD, better.drawMod*PERTURBATIONS[rnd.nextInt(PERTURBATIONS.length)]);
+      worse.lineage = (better.name + " " + better.lineage).trim();
+      System.out.println("  " + worse.name + " <- " + better.name);
+    }
+  }
+
+  /** Runs population based training from the command line and saves the network of the best member.
+  * @param args dim inARow populationSize generations [file]
+  */
+  public static void main(String[] args){
+    if(args.length < 4){
+      System.out.println("Usage: java PopulationTraining dim inARow populationSize generations [file]");
+      System.exit(-1);
+    }
+    PopulationTraining pbt = new PopulationTraining(Integer.parseInt(args[0]), Integer.parseInt(args[1]), Integer.parseInt(args[2]), Runtime.getRuntime().availableProcessors());
+    pbt.run(Integer.parseInt(args[3]));
+
+    String file = (args.length > 4) ? args[4] : "weights.txt";
+    Member best = pbt.ranking().get(0);
+    best.nn.saveToFile(file);
+    System.out.println("Saved " + best.name + " to " + file);
+  }
+}
@@ -0,0 +1,342 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.SplittableRandom;
+
+/** Depth-first proof-number search (df-pn) for proving that the player to move can force a win, used by the "Proof number" player and as a standalone solver.
+*
+*    Every position has a proof number phi and a disproof number delta from the point of view of the player to move: the least number of positions that must still be shown to be wins (losses) for the player to prove that it wins (cannot win). phi is the smallest delta of the children and delta the sum of the phis of the children. The search always descends into the child that is cheapest to prove, with thresholds that make it return as soon as another child becomes more promising, and keeps the numbers of the positions it has seen in a transposition table. A draw counts as a failure of the attacker, the player trying to prove a win.
+*
+*    The moves follow CandidateMoves: a player that can complete a row does so, and a player facing a completed row blocks it, so long forcing sequences have a single move per position. Elsewhere the attacker only tries the candidate moves near the marks (only the moves that threaten to win on the next move if threatsOnly is set), while the defender tries every empty square, so that a proven win is always a real win. Without restrictions the attacker tries every empty square as well, and a disproof means that the position is not a win.
+*
+*    The transposition table has a fixed size. When the slots of a position are taken, the entry that took the least work to compute is replaced, so the large proven subtrees survive and the small ones are recomputed if needed.
+*/
+public class ProofNumberSearch{
+
+  /** The proof and disproof numbers of a proven or disproven position. */
+  static final int INF = Integer.MAX_VALUE / 2;
+  /** Number of slots of the transposition table searched for a position. */
+  static final int BUCKET = 4;
+
+  int dim, inARow;
+  /** The attacker considers the candidate moves within this distance of the marks. dim or more considers every empty square. */
+  int radius;
+  /** If set, the attacker only makes moves that threaten to win on the next move, a search for victory by continuous fours. */
+  boolean threatsOnly = false;
+  /** The largest number of positions expanded in a search. */
+  long maxNodes;
+
+  /** Statistics of the latest search. */
+  long nodes = 0, replacements = 0;
+  private boolean aborted;
+
+  /** The transposition table, allocated by the first search. A key of 0 marks an empty slot. */
+  private long[] ttKey, ttWork;
+  private int[] ttPhi, ttDelta;
+  private int ttMask;
+
+  /** Random numbers for hashing the marks, and the attacker. */
+  private long[][] zobrist;
+  private long[] attackerKey;
+
+  private CandidateMoves cm;
+  private int attacker;
+  /** The hash of the position of the latest search, and the move that proved it, or -1 if the search did not prove it. */
+  private long rootKey;
+  private int rootMove = -1;
+
+  /** Constructor.
+  * @param dimension The dimension of the game board.
+  * @param targetLength How many in a row a player needs to win.
+  * @param r The distance from the marks within which the attacker's moves are considered.
+  * @param nodeLimit The largest number of positions expanded in a search.
+  * @param tableSize The number of entries of the transposition table, rounded up to a power of two.
+  */
+  public ProofNumberSearch(int dimension, int targetLength, int r, long nodeLimit, int tableSize){
+    dim = dimension;
+    inARow = targetLength;
+    radius = r;
+    maxNodes = nodeLimit;
+    int t = BUCKET;
+    while(t < tableSize)
+      t *= 2;
+    ttMask = t - 1;
+
+    SplittableRandom rnd = new SplittableRandom(0x5eed);
+    zobrist = new long[dim*dim][3];
+    for(int c = 0; c < dim*dim; c++)
+      for(int v = 1; v < 3; v++)
+        zobrist[c][v] = rnd.nextLong();
+    attackerKey = new long[]{0, rnd.nextLong(), rnd.nextLong()};
+  }
+
+  /** Tries to prove that the player to move wins.
+  * @param board The position.
+  * @return 1 if the player to move wins, 0 if it does not (within the moves considered), -1 if the node limit was reached first.
+  */
+  public int solve(int[][] board){
+    if(ttKey == null){
+      ttKey = new long[ttMask + 1];
+      ttWork = new long[ttMask + 1];
+      ttPhi = new int[ttMask + 1];
+      ttDelta = new int[ttMask + 1];
+    }
+    cm = new CandidateMoves(dim, inARow, Math.max(1, Math.min(radius, dim)));
+    cm.reset(board);
+    long key = 0;
+    for(int i = 0; i < dim; i++)
+      for(int j = 0; j < dim; j++)
+        if(board[i][j] != 0)
+          key ^= zobrist[i*dim + j][board[i][j]];
+    attacker = cm.marks % 2 + 1;
+    key ^= attackerKey[attacker];
+    nodes = 0;
+    aborted = false;
+    rootKey = key;
+    rootMove = -1;
+
+    mid(key, attacker, INF, INF);
+    int[] e = lookup(key);
+    if(e[0] == 0)
+      return 1;
+    if(e[1] == 0)
+      return 0;
+    return -1;
+  }
+
+  /** Finds a winning move for the player to move. The move is the one that proved the position in the search, or if the position was already proven in the table, the first move of the principal variation.
+  * @param board The position.
+  * @return Pair of integers denoting the coordinates of the move, or null if no win was proven or the proving move is no longer in the table.
+  */
+  public int[] move(int[][] board){
+    if(solve(board) != 1)
+      return null;
+    if(rootMove >= 0)
+      return new int[]{rootMove / dim, rootMove % dim};
+    ArrayList<int[]> pv = principalVariation(board, 1);
+    return pv.isEmpty() ? null : pv.get(0);
+  }
+
+  /** Picks a move without proof when no win is found: the first move in the order of CandidateMoves (a win, a block or the strongest threat) after which the opponent cannot be proven to win. If every move loses, the first one.
+  * @param board The position.
+  * @return Pair of integers denoting the coordinates of the move.
+  */
+  public int[] heuristicMove(int[][] board){
+    CandidateMoves c = new CandidateMoves(dim, inARow, Math.max(1, Math.min(radius, dim)));
+    c.reset(board);
+    int toMove = c.marks % 2 + 1;
+    int[] m = c.moves(toMove);
+    for(int sq : m){
+      int i = sq / dim, j = sq % dim;
+      board[i][j] = toMove;
+      boolean loses = TicTacToe.checkVictory(new int[]{i, j}, inARow, board) < 0 && solve(board) == 1;
+      board[i][j] = 0;
+      if(!loses)
+        return new int[]{i, j};
+    }
+    return new int[]{m[0] / dim, m[0] % dim};
+  }
+
+  /** Follows a proven win from a position: the attacker plays a move that was proven to win and the defender the move whose refutation took the most work.
+  * @param board The position, which must have been proven to be a win by solve().
+  * @param maxLength The largest number of moves returned.
+  * @return The moves.
+  */
+  public ArrayList<int[]> principalVariation(int[][] board, int maxLength){
+    ArrayList<int[]> pv = new ArrayList<int[]>();
+    cm.reset(board);
+    long key = attackerKey[attacker];
+    for(int i = 0; i < dim; i++)
+      for(int j = 0; j < dim; j++)
+        if(board[i][j] != 0)
+          key ^= zobrist[i*dim + j][board[i][j]];
+
+    int toMove = attacker;
+    while(pv.size() < maxLength){
+      int[] m = moves(toMove);
+      int best = -1;
+      long bestWork = -1;
+      for(int sq : m){
+        int[] e = child(key, toMove, sq);
+        long w = work(key ^ zobrist[sq][toMove]);
+        // the attacker needs a child lost for the defender, the defender any child
+        if((toMove == attacker) ? (e[1] == 0 && (best < 0 || w < bestWork)) : w > bestWork){
+          best = sq;
+          bestWork = w;
+        }
+      }
+      if(best < 0)
+        break;
+      pv.add(new int[]{best / dim, best % dim});
+      boolean over = cm.threat(toMove, best) == CandidateMoves.WIN || cm.marks + 1 == dim*dim;
+      cm.play(best / dim, best % dim, toMove);
+      key ^= zobrist[best][toMove];
+      toMove = 3 - toMove;
+      if(over)
+        break;
+    }
+    return pv;
+  }
+
+  /** The multiple iterative deepening step of df-pn: searches a position until its proof number reaches thPhi or its disproof number reaches thDelta.
+  * @param key The hash of the position.
+  * @param toMove The player to move.
+  */
+  private void mid(long key, int toMove, int thPhi, int thDelta){
+    int[] e = lookup(key);
+    if(e[0] >= thPhi || e[1] >= thDelta)
+      return;
+    if(++nodes > maxNodes){
+      aborted = true;
+      return;
+    }
+    long start = nodes;
+    int[] m = moves(toMove);
+    int[][] c = new int[m.length][];
+
+    while(true){
+      // phi is the smallest delta of the children and delta the sum of their phis
+      int phi = INF, delta = 0, best = -1, delta2 = INF;
+      for(int k = 0; k < m.length; k++){
+        c[k] = child(key, toMove, m[k]);
+        delta = (int) Math.min(INF, (long) delta + c[k][0]);
+        if(c[k][1] < phi){
+          delta2 = phi;
+          phi = c[k][1];
+          best = k;
+        } else if(c[k][1] < delta2)
+          delta2 = c[k][1];
+      }
+      if(phi >= thPhi || delta >= thDelta || aborted){
+        // the proving move of the root is kept, since its child may be replaced in the table later
+        if(key == rootKey && phi == 0)
+          rootMove = m[best];
+        store(key, phi, delta, work(key) + nodes - start);
+        return;
+      }
+      int sq = m[best];
+      int childThPhi = (int) Math.min(INF, (long) thDelta - delta + c[best][0]);
+      int childThDelta = (int) Math.min(thPhi, (long) delta2 + 1);
+      cm.play(sq / dim, sq % dim, toMove);
+      mid(key ^ zobrist[sq][toMove], 3 - toMove, childThPhi, childThDelta);
+      cm.undo();
+    }
+  }
+
+  /** @return The proof and disproof numbers of the position after a move, from the point of view of the player to move after it. */
+  private int[] child(long key, int toMove, int sq){
+    int next = 3 - toMove;
+    if(cm.threat(toMove, sq) == CandidateMoves.WIN)
+      return new int[]{INF, 0};
+    if(cm.marks + 1 == dim*dim)
+      return (next == attacker) ? new int[]{INF, 0} : new int[]{0, INF};
+    return lookup(key ^ zobrist[sq][toMove]);
+  }
+
+  /** Generates the moves of a position, @see CandidateMoves#forced() */
+  private int[] moves(int toMove){
+    int[] f = cm.forced(toMove);
+    if(f != null)
+      return f;
+    if(toMove == attacker && radius < dim){
+      int[] m = cm.moves(toMove);
+      if(!threatsOnly)
+        return m;
+      int n = 0;
+      for(int sq : m)
+        if(cm.threat(toMove, sq) >= CandidateMoves.FOUR)
+          m[n++] = sq;
+      return Arrays.copyOf(m, n);
+    }
+    // every empty square, the candidates first
+    int[] m = new int[dim*dim - cm.marks];
+    int n = 0;
+    for(int sq : cm.moves(toMove))
+      m[n++] = sq;
+    for(int sq = 0; sq < dim*dim && n < m.length; sq++)
+      if(cm.board[sq / dim][sq % dim] == 0 && !cm.isCandidate(sq) && (cm.marks > 0 || sq != (dim/2)*dim + dim/2))
+        m[n++] = sq;
+    if(threatsOnly && toMove == attacker){
+      int k = 0;
+      for(int i = 0; i < n; i++)
+        if(cm.threat(toMove, m[i]) >= CandidateMoves.FOUR)
+          m[k++] = m[i];
+      n = k;
+    }
+    return Arrays.copyOf(m, n);
+  }
+
+  private int slot(long key){
+    return (int) ((key * 0x9E3779B97F4A7C15L) >>> 32) & ttMask & ~(BUCKET - 1);
+  }
+
+  /** @return The proof and disproof numbers of a position, 1 and 1 if it is not in the table. */
+  private int[] lookup(long key){
+    int s = slot(key);
+    for(int k = s; k < s + BUCKET; k++)
+      if(ttKey[k] == key)
+        return new int[]{ttPhi[k], ttDelta[k]};
+    return new int[]{1, 1};
+  }
+
+  /** @return The work stored for a position, 0 if it is not in the table. */
+  private long work(long key){
+    int s = slot(key);
+    for(int k = s; k < s + BUCKET; k++)
+      if(ttKey[k] == key)
+        return ttWork[k];
+    return 0;
+  }
+
+  /** Stores a position, replacing the entry of its bucket that took the least work if the bucket is full. */
+  private void store(long key, int phi, int delta, long w){
+    int s = slot(key), victim = s;
+    for(int k = s; k < s + BUCKET; k++){
+      if(ttKey[k] == key || ttKey[k] == 0){
+        victim = k;
+        break;
+      }
+      if(ttWork[k] < ttWork[victim])
+        victim = k;
+    }
+    if(ttKey[victim] != key && ttKey[victim] != 0)
+      replacements++;
+    ttKey[victim] = key;
+    ttPhi[victim] = phi;
+    ttDelta[victim] = delta;
+    ttWork[victim] = w;
+  }
+
+  /** Solves a position from the command line.
+  * @param args dim inARow maxNodes radius [threats] [i j ...], where radius 0 lets the attacker try every empty square, "threats" restricts the attacker to threats, and the pairs i j are the moves made so far starting with X.
+  */
+  public static void main(String[] args){
+    if(args.length < 4){
+      System.out.println("Usage: java ProofNumberSearch dim inARow maxNodes radius [threats] [i j ...]");
+      System.exit(-1);
+    }
+    int dim = Integer.parseInt(args[0]), inARow = Integer.parseInt(args[1]);
+    int radius = Integer.parseInt(args[3]);
+    int k = 4;
+    boolean threats = args.length > k && args[k].equals("threats");
+    if(threats)
+      k++;
+
+    int[][] board = new int[dim][dim];
+    for(int mark = 1; k + 1 < args.length; k += 2, mark = 3 - mark)
+      board[Integer.parseInt(args[k])][Integer.parseInt(args[k+1])] = mark;
+
+    ProofNumberSearch pns = new ProofNumberSearch(dim, inARow, (radius > 0) ? radius : dim, Long.parseLong(args[2]), 1 << 22);
+    pns.threatsOnly = threats;
+    long start = System.nanoTime();
+    int r = pns.solve(board);
+    double secs = (System.nanoTime() - start)/1e9;
+    String[] result = {"unknown, node limit reached", "not a win for the player to move", "win for the player to move"};
+    System.out.println(result[r+1] + " (" + pns.nodes + " nodes, " + pns.replacements + " table replacements, " + String.format("%.2f", secs) + " s)");
+    if(r == 1){
+      StringBuilder sb = new StringBuilder("Winning line:");
+      for(int[] m : pns.principalVariation(board, dim*dim))
+        sb.append(" " + m[0] + "," + m[1]);
+      System.out.println(sb);
+    }
+  }
+}
@@ -0,0 +1,131 @@
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Locale;
+import java.util.Objects;
+import java.util.concurrent.ThreadLocalRandom;
+
+/** Prunes a trained network and compares the pruned network with the original.
+*
+*    The weights of smallest magnitude are set to zero, @see NeuralNetwork#prune(). With fine-tuning, the network is pruned in rounds to a growing fraction of the weights and trained after each round, either against a random player as in NNTrainer.train() or on perfect play with NNTrainer.distill(). The pruned weights stay zero during the training, so only the weights that are kept adapt. The result is saved as a SparseNetwork, and the tool reports the sizes of the files, the time of a forward pass with the dense and the sparse network, and the scores of both against a random player.
+*/
+public class Pruning{
+
+  /** The number of games of each match against the random player. */
+  static final int GAMES = 10000;
+  /** The training of a round of fine-tuning against a random player, @see NNTrainer#train() */
+  static final int FINE_TUNE_BATCH_SIZE = 200, FINE_TUNE_BATCHES = 100;
+  static final double FINE_TUNE_RATE = .1;
+  /** The training of a round of fine-tuning on perfect play, @see NNTrainer#distill() */
+  static final int DISTILL_EPOCHS = 20, DISTILL_BATCH_SIZE = 32;
+  static final double DISTILL_RATE = .5;
+  /** The number of positions the forward passes are timed on. */
+  static final int TIMED_POSITIONS = 20000;
+
+  /** Prunes a network and fine-tunes it.
+  * @param nn The network. Not modified.
+  * @param dim The dimension of the game board.
+  * @param inARow How many in a row a player needs to win.
+  * @param fraction The fraction of the weights of each layer to prune.
+  * @param rounds The number of rounds of fine-tuning.
+  * @param solver If not null, the network is fine-tuned on the perfect play of this solver instead of against a random player.
+  * @return The pruned network.
+  */
+  public static NeuralNetwork pruneAndFineTune(NeuralNetwork nn, int dim, int inARow, double fraction, int rounds, PerfectSolver solver){
+    NeuralNetwork pruned = nn.copy();
+    if(rounds == 0){
+      pruned.prune(fraction);
+      return pruned;
+    }
+    // the fraction is reached gradually, so that the network can adapt to losing the weights a few at a time
+    for(int r = 0; r < rounds; r++){
+      pruned.prune(fraction*(r+1)/rounds);
+      if(solver != null)
+        NNTrainer.distill(solver, pruned, DISTILL_EPOCHS, DISTILL_BATCH_SIZE, DISTILL_RATE);
+      else
+        fineTune(pruned, dim, inARow);
+    }
+    return pruned;
+  }
+
+  /** Trains a network against a random player as in NNTrainer.train(), with the network playing X's and O's in turns. The network is trained in memory, so that its pruned weights stay zero, @see NeuralNetwork#mask */
+  private static void fineTune(NeuralNetwork nn, int dim, int inARow){
+    TicTacToe asX = new TicTacToe(dim, inARow, "Neural network", "Random"), asO = new TicTacToe(dim, inARow, "Random", "Neural network");
+    asX.player1.nn = nn;
+    asO.player2.nn = nn;
+    for(int b = 0; b < 2*FINE_TUNE_BATCHES; b++){
+      ArrayList<GameRecord> gameRecords = NNTrainer.playBatch((b % 2 == 0) ? asX : asO, FINE_TUNE_BATCH_SIZE, .5);
+      Gradient grad = nn.initializeGradient();
+      double bSize = NNTrainer.accumulateGradient(nn, gameRecords, grad, dim, 1.0, -1.0, .5, b % 2 + 1);
+      nn.gradientStep(grad, FINE_TUNE_RATE, bSize);
+    }
+  }
+
+  /** Keeps the outputs of the timed passes alive, so that they are not optimized away. */
+  static volatile double blackhole;
+
+  /** Times the forward passes of a dense and a sparse network on the same random positions.
+  * @return A pair {nanoseconds per position of the dense network, of the sparse network}.
+  */
+  static double[] timeForward(NeuralNetwork dense, SparseNetwork sparse, int dim){
+    ThreadLocalRandom rnd = ThreadLocalRandom.current();
+    double[][] inputs = new double[TIMED_POSITIONS][];
+    for(int k = 0; k < inputs.length; k++){
+      int[][] board = new int[dim][dim];
+      int marks = rnd.nextInt(dim*dim);
+      for(int m = 0; m < marks; m++)
+        board[rnd.nextInt(dim)][rnd.nextInt(dim)] = m % 2 + 1;
+      inputs[k] = NeuralNetwork.formatInput(board);
+    }
+    double[] t = new double[2];
+    // the first pass warms up the compiler and is not counted
+    for(int pass = 0; pass < 2; pass++){
+      long start = System.nanoTime();
+      for(double[] in : inputs)
+        blackhole += dense.feedForward(in)[0];
+      t[0] = (System.nanoTime() - start)/(double) inputs.length;
+      start = System.nanoTime();
+      for(double[] in : inputs)
+        blackhole += sparse.feedForward(in)[0];
+      t[1] = (System.nanoTime() - start)/(double) inputs.length;
+    }
+    return t;
+  }
+
+  /** Prunes a network from the command line.
+  * @param args dim inARow weights fraction output [fineTuneRounds [random|distill]]
+  */
+  public static void main(String[] args){
+    if(args.length < 5){
+      System.out.println("Usage: java Pruning dim inARow weights fraction output [fineTuneRounds [random|distill]]");
+      System.exit(-1);
+    }
+    int dim = Integer.parseInt(args[0]), inARow = Integer.parseInt(args[1]);
+    double fraction = Double.parseDouble(args[3]);
+    int rounds = (args.length > 5) ? Integer.parseInt(args[5]) : 0;
+    NeuralNetwork dense = new NeuralNetwork(new int[] {1, 1});
+    if(!dense.loadFromFile(args[2])){
+      System.out.println("Cannot read the network '" + args[2] + "'. Exiting.");
+      System.exit(-1);
+    }
+
+    PerfectSolver solver = (args.length > 6 && Objects.equals(args[6], "distill")) ? new PerfectSolver(dim, inARow) : null;
+    NeuralNetwork pruned = pruneAndFineTune(dense, dim, inARow, fraction, rounds, solver);
+    SparseNetwork sparse = pruned.toSparse();
+    sparse.saveToFile(args[4]);
+    System.out.println(String.format(Locale.ROOT, "%d of %d weights kept, %s: %d bytes, %s: %d bytes",
+      sparse.nonzeros(), dense.numWeights(), args[2], new File(args[2]).length(), args[4], new File(args[4]).length()));
+
+    double[] t = timeForward(dense, sparse, dim);
+    System.out.println(String.format(Locale.ROOT, "forward pass: dense %.0f ns, sparse %.0f ns", t[0], t[1]));
+
+    // the networks play on both sides of the board, so the scores are comparable
+    Tournament tournament = new Tournament(dim, inARow, GAMES, Runtime.getRuntime().availableProcessors());
+    tournament.sprt = false;
+    Tournament.Entrant random = new Tournament.Entrant("Random");
+    Tournament.Match d = tournament.play(new Tournament.Entrant(args[2], dense), random);
+    Tournament.Match s = tournament.play(new Tournament.Entrant(args[4], sparse), random);
+    System.out.println(d);
+    System.out.println(s);
+    System.out.println(String.format(Locale.ROOT, "score of the pruned network %+.3f +- %.3f", s.score() - d.score(), Math.sqrt(d.scoreError()*d.scoreError() + s.scoreError()*s.scoreError())));
+  }
+}
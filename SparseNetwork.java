@@ -0,0 +1,173 @@
+import java.io.*;
+
+/** A fully connected network whose weight matrices are stored in the compressed sparse row (CSR) format, for evaluating networks that have been pruned, @see NeuralNetwork#prune()
+*
+*    Each layer keeps only its nonzero weights: for row i (a neuron), the weights values[k] of the inputs colIndex[k] for k from rowStart[i] to rowStart[i+1]-1. The forward pass then costs one multiply-add per nonzero weight instead of one per weight, and the file one int and one double per nonzero weight. A sparse network only evaluates the policy, a value head is not kept; it is created from a trained NeuralNetwork with toSparse() and used by a network player through the field Player.sparse.
+*/
+public class SparseNetwork{
+
+  /** Marks the start of a sparse network file. */
+  static final int MAGIC = 0x43535231;
+
+  /** A layer in the CSR format. */
+  static class CsrLayer{
+    String type;
+    int numNodes, inputDim;
+    int[] rowStart, colIndex;
+    double[] values, biases;
+
+    /** Creates a layer from a dense weight matrix, dropping the zeros.
+    * @param weights The weights, one row per neuron.
+    * @param b The biases.
+    * @param t The type of the neurons, @see NeuralNetwork
+    */
+    CsrLayer(double[][] weights, double[] b, String t){
+      type = t;
+      numNodes = weights.length;
+      inputDim = weights[0].length;
+      int nnz = 0;
+      for(double[] w : weights)
+        for(double x : w)
+          if(x != 0.0)
+            nnz++;
+      rowStart = new int[numNodes + 1];
+      colIndex = new int[nnz];
+      values = new double[nnz];
+      int k = 0;
+      for(int i = 0; i < numNodes; i++){
+        rowStart[i] = k;
+        for(int j = 0; j < inputDim; j++)
+          if(weights[i][j] != 0.0){
+            colIndex[k] = j;
+            values[k++] = weights[i][j];
+          }
+      }
+      rowStart[numNodes] = k;
+      biases = b.clone();
+    }
+
+    /** Creates an empty layer to be read from a stream. */
+    CsrLayer(){}
+
+    /** @return The activations of the layer for an input. */
+    double[] activate(double[] input){
+      double[] out = new double[numNodes];
+      for(int i = 0; i < numNodes; i++){
+        double s = biases[i];
+        for(int k = rowStart[i]; k < rowStart[i+1]; k++)
+          s += values[k]*input[colIndex[k]];
+        out[i] = s;
+      }
+      NeuralNetwork.applyActivation(type, out);
+      return out;
+    }
+
+    void writeTo(DataOutputStream out) throws IOException{
+      out.writeUTF(type);
+      out.writeInt(numNodes);
+      out.writeInt(inputDim);
+      out.writeInt(values.length);
+      for(int i = 0; i <= numNodes; i++)
+        out.writeInt(rowStart[i]);
+      for(int k = 0; k < values.length; k++){
+        out.writeInt(colIndex[k]);
+        out.writeDouble(values[k]);
+      }
+      for(int i = 0; i < numNodes; i++)
+        out.writeDouble(biases[i]);
+    }
+
+    static CsrLayer readFrom(DataInputStream in) throws IOException{
+      CsrLayer layer = new CsrLayer();
+      layer.type = in.readUTF();
+      layer.numNodes = in.readInt();
+      layer.inputDim = in.readInt();
+      int nnz = in.readInt();
+      layer.rowStart = new int[layer.numNodes + 1];
+      for(int i = 0; i <= layer.numNodes; i++)
+        layer.rowStart[i] = in.readInt();
+      layer.colIndex = new int[nnz];
+      layer.values = new double[nnz];
+      for(int k = 0; k < nnz; k++){
+        layer.colIndex[k] = in.readInt();
+        layer.values[k] = in.readDouble();
+      }
+      layer.biases = new double[layer.numNodes];
+      for(int i = 0; i < layer.numNodes; i++)
+        layer.biases[i] = in.readDouble();
+      return layer;
+    }
+  }
+
+  CsrLayer[] layers;
+
+  /** Constructor. @see NeuralNetwork#toSparse()
+  * @param l The layers.
+  */
+  public SparseNetwork(CsrLayer[] l){
+    layers = l;
+  }
+
+  /** Computes the output of the network, the distribution of the moves, from given input.
+  * @param input The input as a double array, @see NeuralNetwork#formatInput()
+  * @return Output of the network.
+  */
+  public double[] feedForward(double[] input){
+    for(CsrLayer layer : layers)
+      input = layer.activate(input);
+    return input;
+  }
+
+  /** @return The number of nonzero weights. */
+  public int nonzeros(){
+    int n = 0;
+    for(CsrLayer layer : layers)
+      n += layer.values.length;
+    return n;
+  }
+
+  /** Saves the network in a binary file.
+  * @param filename The name of the file to save into.
+  */
+  public void saveToFile(String filename){
+    try(DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(filename)))){
+      out.writeInt(MAGIC);
+      out.writeInt(layers.length);
+      for(CsrLayer layer : layers)
+        layer.writeTo(out);
+    } catch(IOException e){
+      System.err.format("Exception occurred trying to write to '%s'.", filename);
+      e.printStackTrace();
+    }
+  }
+
+  /** Loads a network saved with saveToFile().
+  * @param filename The name of the file to load from.
+  * @return The network.
+  */
+  public static SparseNetwork loadFromFile(String filename){
+    try(DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(filename)))){
+      if(in.readInt() != MAGIC){
+        System.out.println("'" + filename + "' is not a sparse network. Exiting.");
+        System.exit(-1);
+      }
+      CsrLayer[] layers = new CsrLayer[in.readInt()];
+      for(int l = 0; l < layers.length; l++)
+        layers[l] = CsrLayer.readFrom(in);
+      return new SparseNetwork(layers);
+    } catch(IOException e){
+      System.out.println("Cannot read the sparse network '" + filename + "'. Exiting.");
+      System.exit(-1);
+    }
+    return null;
+  }
+
+  /** @return True if the file starts like a file written by saveToFile(), so that it can be told apart from the text format of NeuralNetwork. */
+  public static boolean isSparseFile(String filename){
+    try(DataInputStream in = new DataInputStream(new FileInputStream(filename))){
+      return in.readInt() == MAGIC;
+    } catch(IOException e){
+      return false;
+    }
+  }
+}
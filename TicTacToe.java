@@ -17,6 +17,16 @@ public class TicTacToe{
   /**Stores the amount of marks needed in a row to win the game.*/
   int inARow;
   
+  /**The default budget of a move for MCTS players. @see MCTS*/
+  static final int MCTS_PLAYOUTS = 2000;
+  static final long MCTS_MILLIS = 1000;
+  /**The default depth of a value search player. @see ValueSearch*/
+  static final int VALUE_SEARCH_DEPTH = 2;
+  /**The default number of positions a proof number player searches per move. @see ProofNumberSearch*/
+  static final long PROOF_NUMBER_NODES = 100000;
+  /**On boards at least this large, the network and search players only consider the moves near the marks. @see CandidateMoves*/
+  static final int CANDIDATE_MIN_DIM = 7;
+  
   /**The players of the game as instances of the class Player. @see Player*/
   Player player1, player2;
   
@@ -121,6 +131,29 @@ public class TicTacToe{
 
     if(Objects.equals(p2, "Minmax"))
        player2.initializeMM(targetLength, 2);
+
+    if(Objects.equals(p1, "MCTS"))
+      player1.initializeMCTS(dimension, targetLength, MCTS_PLAYOUTS, MCTS_MILLIS, Runtime.getRuntime().availableProcessors());
+
+    if(Objects.equals(p2, "MCTS"))
+      player2.initializeMCTS(dimension, targetLength, MCTS_PLAYOUTS, MCTS_MILLIS, Runtime.getRuntime().availableProcessors());
+
+    if(Objects.equals(p1, "Value search"))
+      player1.initializeValueSearch(dimension, targetLength, VALUE_SEARCH_DEPTH);
+
+    if(Objects.equals(p2, "Value search"))
+      player2.initializeValueSearch(dimension, targetLength, VALUE_SEARCH_DEPTH);
+
+    if(Objects.equals(p1, "Proof number"))
+      player1.initializeProofSearch(dimension, targetLength, PROOF_NUMBER_NODES);
+
+    if(Objects.equals(p2, "Proof number"))
+      player2.initializeProofSearch(dimension, targetLength, PROOF_NUMBER_NODES);
+
+    if(dimension >= CANDIDATE_MIN_DIM){
+      player1.initializeCandidates(dimension, targetLength, CandidateMoves.DEFAULT_RADIUS);
+      player2.initializeCandidates(dimension, targetLength, CandidateMoves.DEFAULT_RADIUS);
+    }
   }
   
   /** Method that runs a game of tic-tac-toe. 
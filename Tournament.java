@@ -0,0 +1,349 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.Objects;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/** Plays matches between players on a thread pool and reports the results with confidence intervals and Elo estimates. Replaces the serial loop of NNTrainer.showGame() when comparing players, for example when deciding whether a newly trained network is better than the previous one.
+*
+*    Every thread plays its games on its own TicTacToe instances, and the random moves of all the player types come from ThreadLocalRandom, so each thread has an independent random stream. The games of a match are handed out in chunks, and the players switch sides between games. After each chunk the match is tested with a sequential probability ratio test (SPRT) of the hypotheses Elo = SPRT_ELO0 and Elo = SPRT_ELO1, and the match stops as soon as one of them is accepted.
+*
+*    An entrant is given as "type" or "type:weights file", for example "Minmax" or "Neural network:weights.txt", optionally followed by ":book=book file" to play the moves of an opening book. The weights file is either a network saved by NeuralNetwork or, for the "Neural network" player only, a pruned one saved by SparseNetwork. The networks are loaded once and shared by the threads.
+*/
+public class Tournament{
+
+  /** Hypotheses of the SPRT as Elo differences, and its error probabilities. */
+  static final double SPRT_ELO0 = 0.0, SPRT_ELO1 = 20.0;
+  static final double SPRT_ALPHA = 0.05, SPRT_BETA = 0.05;
+  /** Number of games claimed by a thread at a time. The SPRT is checked after each chunk. */
+  static final int CHUNK_GAMES = 32;
+  /** The SPRT is not checked before this many games, since the normal approximation does not hold for fewer. */
+  static final int SPRT_MIN_GAMES = 2*CHUNK_GAMES;
+  /** Quantile of the normal distribution for the 95% confidence intervals. */
+  static final double Z95 = 1.96;
+
+  int dim, inARow;
+  int numThreads;
+  /** The largest number of games of a match. */
+  int maxGames;
+  /** If false, every match is played to maxGames. */
+  boolean sprt = true;
+
+  private ExecutorService pool;
+
+  /** A player type together with its network and opening book. */
+  static class Entrant{
+    String name, type;
+    NeuralNetwork nn = null;
+    /** Set instead of nn if the weights file is a pruned network, @see SparseNetwork */
+    SparseNetwork sparse = null;
+    /** The opening book of the player, or null for none, @see OpeningBook */
+    OpeningBook book = null;
+
+    /** Constructor.
+    * @param spec The type, optionally followed by ":weights file" and ":book=book file", for example "Minmax:book=book.bin" or "Neural network:weights.txt:book=book.bin".
+    */
+    Entrant(String spec){
+      name = spec;
+      String[] parts = spec.split(":");
+      type = parts[0];
+      if(Objects.equals(type, "Human")){
+        System.out.println("Human players cannot take part in a tournament. Exiting.");
+        System.exit(-1);
+      }
+      for(int k = 1; k < parts.length; k++){
+        if(parts[k].startsWith("book="))
+          book = new OpeningBook(parts[k].substring(5));
+        else if(SparseNetwork.isSparseFile(parts[k])){
+          // only the policy of the network player is evaluated with a sparse network
+          if(!Objects.equals(type, "Neural network")){
+            System.out.println("'" + parts[k] + "' is a pruned network, which only the \"Neural network\" player can use. Exiting.");
+            System.exit(-1);
+          }
+          sparse = SparseNetwork.loadFromFile(parts[k]);
+        }
+        else {
+          nn = new NeuralNetwork(new int[] {1, 1});
+          if(!nn.loadFromFile(parts[k])){
+            System.out.println("Cannot read the network '" + parts[k] + "'. Exiting.");
+            System.exit(-1);
+          }
+        }
+      }
+    }
+
+    /** Constructor for a network that is already loaded.
+    * @param n The name of the entrant in the results.
+    * @param net The network, which must not change during a match.
+    */
+    Entrant(String n, NeuralNetwork net){
+      name = n;
+      type = "Neural network";
+      nn = net;
+    }
+
+    /** Constructor for a pruned network that is already loaded. */
+    Entrant(String n, SparseNetwork net){
+      name = n;
+      type = "Neural network";
+      sparse = net;
+    }
+  }
+
+  /** The result of a match from the point of view of the first entrant. */
+  static class Match{
+    Entrant a, b;
+    int wins = 0, draws = 0, losses = 0;
+    /** Log-likelihood ratio of the SPRT, and the accepted hypothesis: 1 for SPRT_ELO1, 0 for SPRT_ELO0, -1 if neither. */
+    double llr = 0.0;
+    int accepted = -1;
+    /** False if the match is played without the SPRT, which is then left out of the results. */
+    boolean sprt = true;
+
+    Match(Entrant x, Entrant y){
+      a = x;
+      b = y;
+    }
+
+    int games(){ return wins + draws + losses; }
+
+    /** @return The mean score of the first entrant, counting draws as half. */
+    double score(){ return (wins + 0.5*draws)/games(); }
+
+    /** @return The variance of the score of a single game. */
+    double variance(){
+      double s = score(), n = games();
+      return (wins*(1-s)*(1-s) + draws*(.5-s)*(.5-s) + losses*s*s)/n;
+    }
+
+    /** @return Half the width of the 95% confidence interval of the score. */
+    double scoreError(){ return Z95*Math.sqrt(variance()/games()); }
+
+    /** Updates the SPRT with the normal approximation of the game results. The score and its variance are estimated with one extra win, draw and loss, so that they stay away from the bounds when every game has had the same result and the LLR cannot be inflated by a vanishing variance. */
+    void test(){
+      if(games() < SPRT_MIN_GAMES)
+        return;
+      double s0 = expectedScore(SPRT_ELO0), s1 = expectedScore(SPRT_ELO1);
+      double n = games() + 3, s = (wins + 1 + 0.5*(draws + 1))/n;
+      double v = ((wins + 1)*(1-s)*(1-s) + (draws + 1)*(.5-s)*(.5-s) + (losses + 1)*s*s)/n;
+      llr = games()*(s1 - s0)*(2*s - s0 - s1)/(2*v);
+      if(llr >= Math.log((1 - SPRT_BETA)/SPRT_ALPHA))
+        accepted = 1;
+      else if(llr <= Math.log(SPRT_BETA/(1 - SPRT_ALPHA)))
+        accepted = 0;
+    }
+
+    public String toString(){
+      double s = score(), e = scoreError();
+      double elo = elo(s);
+      String result = String.format(Locale.ROOT, "%s vs %s: +%d =%d -%d (%d games), score %.3f +- %.3f, Elo %+.0f [%+.0f, %+.0f]",
+        a.name, b.name, wins, draws, losses, games(), s, e, elo, elo(s - e), elo(s + e));
+      if(!sprt)
+        return result;
+      String sprtResult = (accepted == 1) ? "H1 accepted" : (accepted == 0) ? "H0 accepted" : "inconclusive";
+      return result + String.format(Locale.ROOT, ", SPRT %s (LLR %.2f)", sprtResult, llr);
+    }
+  }
+
+  /** Constructor.
+  * @param dimension The dimension of the game board.
+  * @param targetLength How many in a row a player needs to win.
+  * @param games The largest number of games of a match.
+  * @param threads The number of threads playing games.
+  */
+  public Tournament(int dimension, int targetLength, int games, int threads){
+    dim = dimension;
+    inARow = targetLength;
+    maxGames = games;
+    numThreads = threads;
+  }
+
+  /** @return The expected score of a player that is elo points stronger than its opponent. */
+  static double expectedScore(double elo){
+    return 1.0/(1.0 + Math.pow(10, -elo/400));
+  }
+
+  /** @return The Elo difference corresponding to a mean score, infinite for a score of 0 or 1. */
+  static double elo(double score){
+    if(score <= 0.0)
+      return Double.NEGATIVE_INFINITY;
+    if(score >= 1.0)
+      return Double.POSITIVE_INFINITY;
+    return -400*Math.log10(1/score - 1);
+  }
+
+  /** Creates a game between two entrants. Each game has its own players, so that their state is not shared between threads. MCTS players search on a single thread, since the games already run in parallel.
+  * @param x The entrant playing X's.
+  * @param y The entrant playing O's.
+  */
+  private TicTacToe newGame(Entrant x, Entrant y){
+    TicTacToe game = new TicTacToe(dim, inARow, x.type, y.type);
+    setUp(game.player1, x);
+    setUp(game.player2, y);
+    return game;
+  }
+
+  private void setUp(Player p, Entrant e){
+    if(e.nn != null)
+      p.nn = e.nn;
+    if(e.sparse != null)
+      p.sparse = e.sparse;
+    if(e.book != null){
+      e.book.verify(dim, inARow);
+      p.book = e.book;
+    }
+    if(p.mcts != null)
+      p.initializeMCTS(dim, inARow, TicTacToe.MCTS_PLAYOUTS, TicTacToe.MCTS_MILLIS, 1);
+  }
+
+  /** Plays a match. The first entrant plays X's in the even games and O's in the odd games.
+  * @return The result of the match.
+  */
+  public Match play(Entrant a, Entrant b){
+    if(pool == null)
+      pool = Executors.newFixedThreadPool(numThreads, r -> { Thread t = new Thread(r, "Tournament"); t.setDaemon(true); return t; });
+
+    Match match = new Match(a, b);
+    match.sprt = sprt;
+    AtomicInteger claimed = new AtomicInteger();
+    Future<?>[] tasks = new Future<?>[numThreads];
+    for(int k = 0; k < numThreads; k++)
+      tasks[k] = pool.submit(() -> {
+        TicTacToe asX = newGame(a, b), asO = newGame(b, a);
+        while(true){
+          synchronized(match){
+            if(match.accepted >= 0)
+              return;
+          }
+          int first = claimed.getAndAdd(CHUNK_GAMES);
+          if(first >= maxGames)
+            return;
+          int w = 0, d = 0, l = 0;
+          for(int g = first; g < Math.min(first + CHUNK_GAMES, maxGames); g++){
+            int r = (g % 2 == 0) ? asX.play(false) : asO.play(false);
+            // the number of the winning player as seen by entrant a
+            if(r != 0 && g % 2 == 1)
+              r = 3 - r;
+            if(r == 1) w++;
+            else if(r == 2) l++;
+            else d++;
+          }
+          synchronized(match){
+            match.wins += w;
+            match.draws += d;
+            match.losses += l;
+            if(sprt && match.accepted < 0)
+              match.test();
+          }
+        }
+      });
+    for(Future<?> f : tasks){
+      try{ f.get(); } catch(Exception e){ throw new RuntimeException(e); }
+    }
+    return match;
+  }
+
+  /** Plays every entrant against every other one.
+  * @return The matches in the order they were played.
+  */
+  public ArrayList<Match> roundRobin(ArrayList<Entrant> entrants){
+    ArrayList<Match> matches = new ArrayList<Match>();
+    for(int i = 0; i < entrants.size(); i++)
+      for(int j = i+1; j < entrants.size(); j++){
+        matches.add(play(entrants.get(i), entrants.get(j)));
+        System.out.println(matches.get(matches.size()-1));
+      }
+    return matches;
+  }
+
+  /** Plays a candidate against each of the opponents.
+  * @return The matches in the order they were played.
+  */
+  public ArrayList<Match> gauntlet(Entrant candidate, ArrayList<Entrant> opponents){
+    ArrayList<Match> matches = new ArrayList<Match>();
+    for(Entrant o : opponents){
+      matches.add(play(candidate, o));
+      System.out.println(matches.get(matches.size()-1));
+    }
+    return matches;
+  }
+
+  /** Fits Elo ratings to the results of a set of matches with the Bradley-Terry model. Every pair that has played is given one extra draw, so that the ratings stay finite when an entrant has won or lost every game.
+  * @return The ratings in the order of the entrants, with mean 0.
+  */
+  public static double[] ratings(ArrayList<Entrant> entrants, ArrayList<Match> matches){
+    int n = entrants.size();
+    double[][] games = new double[n][n];
+    double[] score = new double[n];
+    for(Match m : matches){
+      int i = entrants.indexOf(m.a), j = entrants.indexOf(m.b);
+      games[i][j] += m.games() + 1;
+      games[j][i] += m.games() + 1;
+      score[i] += m.wins + 0.5*m.draws + 0.5;
+      score[j] += m.losses + 0.5*m.draws + 0.5;
+    }
+
+    // minorization-maximization iterations for the strengths gamma, Elo = 400*log10(gamma)
+    double[] gamma = new double[n];
+    Arrays.fill(gamma, 1.0);
+    for(int it = 0; it < 1000; it++){
+      double[] next = new double[n];
+      for(int i = 0; i < n; i++){
+        double d = 0.0;
+        for(int j = 0; j < n; j++)
+          if(games[i][j] > 0)
+            d += games[i][j]/(gamma[i] + gamma[j]);
+        next[i] = (d > 0) ? score[i]/d : gamma[i];
+      }
+      gamma = next;
+    }
+
+    double[] elo = new double[n];
+    double mean = 0.0;
+    for(int i = 0; i < n; i++){
+      elo[i] = 400*Math.log10(gamma[i]);
+      mean += elo[i]/n;
+    }
+    for(int i = 0; i < n; i++)
+      elo[i] -= mean;
+    return elo;
+  }
+
+  /** Runs a tournament from the command line.
+  * @param args dim inARow roundrobin|gauntlet maxGames [nosprt] entrant entrant [entrant...], where the first entrant is the candidate of a gauntlet. With nosprt every match is played to maxGames.
+  */
+  public static void main(String[] args){
+    if(args.length < 6 || (Objects.equals(args[4], "nosprt") && args.length < 7)){
+      System.out.println("Usage: java Tournament dim inARow roundrobin|gauntlet maxGames [nosprt] entrant entrant [entrant...]");
+      System.out.println("An entrant is a player type, optionally followed by ':' and a weights file and by ':book=' and an opening book, e.g. \"Neural network:weights.txt\" or \"Minmax:book=book.bin\".");
+      System.exit(-1);
+    }
+    Tournament t = new Tournament(Integer.parseInt(args[0]), Integer.parseInt(args[1]), Integer.parseInt(args[3]), Runtime.getRuntime().availableProcessors());
+    int first = 4;
+    if(Objects.equals(args[4], "nosprt")){
+      t.sprt = false;
+      first++;
+    }
+    ArrayList<Entrant> entrants = new ArrayList<Entrant>();
+    for(int k = first; k < args.length; k++)
+      entrants.add(new Entrant(args[k]));
+
+    long start = System.nanoTime();
+    ArrayList<Match> matches;
+    if(Objects.equals(args[2], "gauntlet"))
+      matches = t.gauntlet(entrants.get(0), new ArrayList<Entrant>(entrants.subList(1, entrants.size())));
+    else
+      matches = t.roundRobin(entrants);
+
+    double[] elo = ratings(entrants, matches);
+    for(int i = 0; i < entrants.size(); i++)
+      System.out.println(String.format(Locale.ROOT, "%+6.0f  %s", elo[i], entrants.get(i).name));
+    int games = 0;
+    for(Match m : matches)
+      games += m.games();
+    System.out.println(String.format(Locale.ROOT, "%d games in %.2f s", games, (System.nanoTime() - start)/1e9));
+  }
+}
@@ -0,0 +1,344 @@
+import java.io.BufferedWriter;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import jdk.jfr.Category;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/** Measures where the training loop of NNTrainer spends its time and whether the network is still learning, @see NNTrainer#train()
+*
+*    Each batch is split into the phases generation (playing the games), backprop (computing the gradient), update (the gradient step) and checkpoint (saving and reloading the weights). After each batch a sample with the games and positions per second, the time of each phase, the norm of the mean gradient, the entropy of the policy and the bytes allocated by the training thread is handed to a background thread, which writes it as a line of JSON, or CSV if the file name ends with ".csv". The hand-off never blocks: if the writer falls behind, samples are dropped and counted.
+*
+*    The batches and phases are also recorded as JFR events, which show up in a flight recording started with -XX:StartFlightRecording.
+*/
+public class TrainingMetrics{
+
+  /** The phases of a batch. */
+  static final int GENERATION = 0, BACKPROP = 1, UPDATE = 2, CHECKPOINT = 3;
+  static final String[] PHASES = {"generation", "backprop", "update", "checkpoint"};
+
+  /** How many samples may wait for the writer. */
+  static final int QUEUE_CAPACITY = 1024;
+  /** How long close() waits for the writer to write the remaining samples, in milliseconds. */
+  static final long CLOSE_TIMEOUT_MILLIS = 10000;
+  /** How many positions of a batch are used for estimating the policy entropy. */
+  static final int ENTROPY_SAMPLE = 64;
+
+  /** Totals over all the batches. */
+  final LongAdder games = new LongAdder(), positions = new LongAdder(), batches = new LongAdder(), dropped = new LongAdder();
+  final LongAdder[] phaseNanos = new LongAdder[PHASES.length];
+  /** Distributions of the batch times in microseconds and the game lengths in moves. */
+  final Histogram batchMicros = new Histogram(), gameLength = new Histogram();
+
+  /** JFR event of a training batch. */
+  @Name("tictactoe.TrainingBatch")
+  @Label("Training Batch")
+  @Category("Training")
+  static class BatchEvent extends Event{
+    @Label("Run") int run;
+    @Label("Batch") int batch;
+    @Label("Games") int games;
+    @Label("Positions") int positions;
+    @Label("Gradient Norm") double gradientNorm;
+    @Label("Policy Entropy") double policyEntropy;
+  }
+
+  /** JFR event of a phase of a training batch. */
+  @Name("tictactoe.TrainingPhase")
+  @Label("Training Phase")
+  @Category("Training")
+  static class PhaseEvent extends Event{
+    @Label("Run") int run;
+    @Label("Batch") int batch;
+    @Label("Phase") String phase;
+  }
+
+  /** A row of the output, formatted by the writer thread. */
+  private static class Sample{
+    int run, batch, games, positions;
+    double seconds, gradientNorm, policyEntropy;
+    long allocatedBytes;
+    long[] phaseNanos;
+  }
+  private static final Sample END = new Sample();
+
+  private ArrayBlockingQueue<Sample> queue = null;
+  private Thread writer = null;
+
+  /** State of the batch in progress. */
+  private int run = 0, batch;
+  private int phase = -1;
+  private long batchStart, phaseStart, allocStart;
+  private long[] batchPhaseNanos = new long[PHASES.length];
+  private BatchEvent batchEvent;
+  private PhaseEvent phaseEvent;
+
+  private final com.sun.management.ThreadMXBean threads;
+
+  /** Constructor.
+  * @param filename The file the samples are written into, or null if they are only collected into the totals and JFR events.
+  */
+  public TrainingMetrics(String filename){
+    for(int p = 0; p < PHASES.length; p++)
+      phaseNanos[p] = new LongAdder();
+
+    java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+    threads = (bean instanceof com.sun.management.ThreadMXBean && ((com.sun.management.ThreadMXBean) bean).isThreadAllocatedMemorySupported()) ? (com.sun.management.ThreadMXBean) bean : null;
+
+    if(filename == null)
+      return;
+    BufferedWriter out;
+    try{
+      out = new BufferedWriter(new FileWriter(filename));
+    } catch(IOException e){
+      System.out.println("Cannot write the training metrics into '" + filename + "'. Exiting.");
+      System.exit(-1);
+      return;
+    }
+    boolean csv = filename.endsWith(".csv");
+    queue = new ArrayBlockingQueue<>(QUEUE_CAPACITY);
+    writer = new Thread(() -> write(out, csv), "TrainingMetrics");
+    writer.setDaemon(true);
+    writer.start();
+  }
+
+  /** Starts a new training run. The batches of a run are numbered from 1. */
+  public void startRun(){
+    run++;
+  }
+
+  /** Starts a batch. Must be followed by the phases of the batch and endBatch().
+  * @param b The number of the batch within the run.
+  */
+  public void startBatch(int b){
+    batch = b;
+    Arrays.fill(batchPhaseNanos, 0);
+    allocStart = allocatedBytes();
+    batchEvent = new BatchEvent();
+    batchEvent.begin();
+    batchStart = System.nanoTime();
+  }
+
+  /** Ends the current phase, if any, and starts another one.
+  * @param p The phase, one of GENERATION, BACKPROP, UPDATE and CHECKPOINT.
+  */
+  public void phase(int p){
+    endPhase();
+    phase = p;
+    phaseEvent = new PhaseEvent();
+    phaseEvent.begin();
+    phaseStart = System.nanoTime();
+  }
+
+  private void endPhase(){
+    if(phase < 0)
+      return;
+    long t = System.nanoTime() - phaseStart;
+    batchPhaseNanos[phase] += t;
+    phaseNanos[phase].add(t);
+    phaseEvent.end();
+    if(phaseEvent.shouldCommit()){
+      phaseEvent.run = run;
+      phaseEvent.batch = batch;
+      phaseEvent.phase = PHASES[phase];
+      phaseEvent.commit();
+    }
+    phase = -1;
+  }
+
+  /** Ends a batch and records its sample.
+  * @param nn The network being trained, used for the policy entropy.
+  * @param gameRecords The games of the batch.
+  * @param grad The summed gradient of the batch.
+  * @param bSize The number of positions in the gradient.
+  */
+  public void endBatch(NeuralNetwork nn, ArrayList<GameRecord> gameRecords, Gradient grad, double bSize){
+    endPhase();
+    long t = System.nanoTime() - batchStart;
+    long alloc = allocatedBytes() - allocStart;
+
+    int n = 0;
+    for(GameRecord g : gameRecords){
+      n += g.move.size();
+      gameLength.record(g.move.size());
+    }
+    games.add(gameRecords.size());
+    positions.add(n);
+    batches.increment();
+    batchMicros.record(t / 1000);
+
+    double norm = (bSize > 0) ? grad.norm()/bSize : 0.0;
+    double entropy = policyEntropy(nn, gameRecords, n);
+
+    batchEvent.end();
+    if(batchEvent.shouldCommit()){
+      batchEvent.run = run;
+      batchEvent.batch = batch;
+      batchEvent.games = gameRecords.size();
+      batchEvent.positions = n;
+      batchEvent.gradientNorm = norm;
+      batchEvent.policyEntropy = entropy;
+      batchEvent.commit();
+    }
+
+    if(queue == null)
+      return;
+    Sample s = new Sample();
+    s.run = run;
+    s.batch = batch;
+    s.games = gameRecords.size();
+    s.positions = n;
+    s.seconds = t/1e9;
+    s.gradientNorm = norm;
+    s.policyEntropy = entropy;
+    s.allocatedBytes = alloc;
+    s.phaseNanos = batchPhaseNanos.clone();
+    if(!queue.offer(s))
+      dropped.increment();
+  }
+
+  /** Estimates the mean entropy of the policy over the legal moves from evenly spaced positions of a batch.
+  * @param n The number of positions in the batch.
+  * @return The mean entropy in nats.
+  */
+  private static double policyEntropy(NeuralNetwork nn, ArrayList<GameRecord> gameRecords, int n){
+    int stride = Math.max(1, n / ENTROPY_SAMPLE);
+    int k = 0, count = 0;
+    double sum = 0.0;
+    for(GameRecord g : gameRecords)
+      for(double[] input : g.board){
+        if(k++ % stride != 0)
+          continue;
+        double[] out = nn.feedForward(input);
+        double total = 0.0, h = 0.0;
+        for(int i = 0; i < out.length; i++)
+          if(input[i] == 0.0)
+            total += out[i];
+        for(int i = 0; i < out.length; i++)
+          if(input[i] == 0.0 && out[i] > 0.0)
+            h -= out[i]/total * Math.log(out[i]/total);
+        sum += h;
+        count++;
+      }
+    return (count == 0) ? 0.0 : sum/count;
+  }
+
+  private long allocatedBytes(){
+    return (threads == null) ? 0 : threads.getThreadAllocatedBytes(Thread.currentThread().getId());
+  }
+
+  /** The loop of the writer thread. */
+  private void write(BufferedWriter out, boolean csv){
+    try{
+      if(csv){
+        out.write("run,batch,games,positions,seconds,gamesPerSecond,positionsPerSecond");
+        for(String p : PHASES)
+          out.write("," + p + "Millis");
+        out.write(",gradientNorm,policyEntropy,allocatedBytes,allocationRate\n");
+      }
+      while(true){
+        Sample s = queue.take();
+        if(s == END)
+          break;
+        out.write(csv ? csv(s) : json(s));
+        out.write("\n");
+        if(queue.isEmpty())
+          out.flush();
+      }
+      out.close();
+    } catch(IOException | InterruptedException e){
+      System.err.println("Writing the training metrics failed.");
+      e.printStackTrace();
+    }
+  }
+
+  private static String json(Sample s){
+    StringBuilder sb = new StringBuilder();
+    sb.append(String.format(Locale.ROOT, "{\"run\":%d,\"batch\":%d,\"games\":%d,\"positions\":%d,\"seconds\":%.6f,\"gamesPerSecond\":%.1f,\"positionsPerSecond\":%.1f",
+      s.run, s.batch, s.games, s.positions, s.seconds, s.games/s.seconds, s.positions/s.seconds));
+    for(int p = 0; p < PHASES.length; p++)
+      sb.append(String.format(Locale.ROOT, ",\"%sMillis\":%.3f", PHASES[p], s.phaseNanos[p]/1e6));
+    sb.append(String.format(Locale.ROOT, ",\"gradientNorm\":%.6g,\"policyEntropy\":%.6f,\"allocatedBytes\":%d,\"allocationRate\":%.1f}",
+      s.gradientNorm, s.policyEntropy, s.allocatedBytes, s.allocatedBytes/s.seconds));
+    return sb.toString();
+  }
+
+  private static String csv(Sample s){
+    StringBuilder sb = new StringBuilder();
+    sb.append(String.format(Locale.ROOT, "%d,%d,%d,%d,%.6f,%.1f,%.1f", s.run, s.batch, s.games, s.positions, s.seconds, s.games/s.seconds, s.positions/s.seconds));
+    for(int p = 0; p < PHASES.length; p++)
+      sb.append(String.format(Locale.ROOT, ",%.3f", s.phaseNanos[p]/1e6));
+    sb.append(String.format(Locale.ROOT, ",%.6g,%.6f,%d,%.1f", s.gradientNorm, s.policyEntropy, s.allocatedBytes, s.allocatedBytes/s.seconds));
+    return sb.toString();
+  }
+
+  /** Writes the remaining samples and stops the writer thread. Waits at most CLOSE_TIMEOUT_MILLIS, so that a writer that has failed or is stuck cannot hang the training. */
+  public void close(){
+    if(writer == null)
+      return;
+    long deadline = System.currentTimeMillis() + CLOSE_TIMEOUT_MILLIS;
+    try{
+      // a writer that has died no longer empties the queue, so the end mark is only waited for while it runs
+      while(writer.isAlive() && !queue.offer(END, 100, TimeUnit.MILLISECONDS) && System.currentTimeMillis() < deadline);
+      writer.join(Math.max(1, deadline - System.currentTimeMillis()));
+    } catch(InterruptedException e){
+      Thread.currentThread().interrupt();
+    }
+    if(writer.isAlive())
+      System.err.println("The training metrics writer did not finish, the last samples may be missing.");
+    writer = null;
+  }
+
+  /** @return A summary of the totals: throughput, the share of each phase and the batch time percentiles. */
+  public String summary(){
+    long total = 0;
+    for(LongAdder a : phaseNanos)
+      total += a.sum();
+    StringBuilder sb = new StringBuilder();
+    sb.append(String.format(Locale.ROOT, "%d batches, %d games, %d positions, %.1f games/s, %.1f positions/s",
+      batches.sum(), games.sum(), positions.sum(), games.sum()/(total/1e9), positions.sum()/(total/1e9)));
+    for(int p = 0; p < PHASES.length; p++)
+      sb.append(String.format(Locale.ROOT, ", %s %.1f%%", PHASES[p], 100.0*phaseNanos[p].sum()/Math.max(1, total)));
+    sb.append(String.format(Locale.ROOT, ", batch time p50 %.1f ms p99 %.1f ms, game length p50 %d", batchMicros.percentile(.5)/1e3, batchMicros.percentile(.99)/1e3, gameLength.percentile(.5)));
+    if(dropped.sum() > 0)
+      sb.append(", " + dropped.sum() + " samples dropped");
+    return sb.toString();
+  }
+
+  /** A histogram of non-negative values with buckets of powers of two. Recording is lock free. */
+  static class Histogram{
+    final LongAdder[] buckets = new LongAdder[65];
+
+    Histogram(){
+      for(int b = 0; b < buckets.length; b++)
+        buckets[b] = new LongAdder();
+    }
+
+    /** Adds a value. The bucket b holds the values from 2^(b-1) to 2^b - 1. */
+    void record(long v){
+      buckets[64 - Long.numberOfLeadingZeros(Math.max(0, v))].increment();
+    }
+
+    /** @return The upper end of the bucket that contains the quantile q of the recorded values. */
+    long percentile(double q){
+      long n = 0;
+      for(LongAdder b : buckets)
+        n += b.sum();
+      long seen = 0;
+      for(int b = 0; b < buckets.length; b++){
+        seen += buckets[b].sum();
+        if(seen > 0 && seen >= q*n)
+          return (b == 0) ? 0 : (b >= 63) ? Long.MAX_VALUE : (1L << b) - 1;
+      }
+      return 0;
+    }
+  }
+}
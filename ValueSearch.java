@@ -0,0 +1,139 @@
+import java.util.Arrays;
+
+/** Depth-limited alpha-beta search that evaluates the positions at the depth limit with the value head of a network, used by the "Value search" player. @see NeuralNetwork#evaluate()
+*
+*    Finished games are scored exactly: 1 for a win, 0 for a draw and -1 for a loss. If the first layer of the network is fully connected, it is updated incrementally as the search makes and takes back moves, @see NNAccumulator
+*
+*    With a positive radius only the candidate moves near the marks are searched, strongest threats first, which keeps the branching factor small on large boards and makes the cutoffs come early, @see CandidateMoves
+*/
+public class ValueSearch{
+
+  int dim, inARow;
+  /** How many moves ahead the search looks. */
+  int depth;
+
+  /** If positive, only the candidate moves within this distance of the marks are searched, in the order given by CandidateMoves. 0 searches every empty square. */
+  int radius = 0;
+
+  /** Number of positions evaluated with the network in the latest search. */
+  long evaluations = 0;
+
+  private NNAccumulator acc = null;
+  private CandidateMoves cm = null;
+  private NeuralNetwork nn;
+  private int[][] board;
+
+  /** Constructor.
+  * @param dimension The dimension of the game board.
+  * @param targetLength How many in a row a player needs to win.
+  * @param d How many moves ahead to search.
+  */
+  public ValueSearch(int dimension, int targetLength, int d){
+    dim = dimension;
+    inARow = targetLength;
+    depth = d;
+  }
+
+  /** Searches for a move.
+  * @param b The state of the board before the move.
+  * @param network The network, must have a value head.
+  * @return Pair of integers denoting the coordinates of the move.
+  */
+  public int[] move(int[][] b, NeuralNetwork network){
+    if(network == null || network.valueHead == null){
+      System.out.println("Value search needs a network with a value head. Exiting.");
+      System.exit(-1);
+    }
+    nn = network;
+    if(!nn.supportsIncremental())
+      acc = null;
+    else if(acc == null || acc.nn != nn)
+      acc = new NNAccumulator(nn, dim);
+
+    board = new int[dim][dim];
+    int marks = 0;
+    for(int i = 0; i < dim; i++)
+      for(int j = 0; j < dim; j++){
+        board[i][j] = b[i][j];
+        if(b[i][j] != 0)
+          marks++;
+      }
+    if(acc != null)
+      acc.sync(board);
+    if(radius <= 0)
+      cm = null;
+    else if(cm == null || cm.radius != radius)
+      cm = new CandidateMoves(dim, inARow, radius);
+    if(cm != null)
+      cm.sync(board);
+    evaluations = 0;
+
+    int pl = marks % 2 + 1;
+    double best = Double.NEGATIVE_INFINITY;
+    int[] bestMove = null;
+    for(int sq : moves(pl)){
+      double v = -search(sq / dim, sq % dim, pl, depth, -1.0 - 1e-9, -best);
+      if(v > best || bestMove == null){
+        best = v;
+        bestMove = new int[]{sq / dim, sq % dim};
+      }
+    }
+    return bestMove;
+  }
+
+  /** @return The moves to search in the current position, the candidate moves if there are any and otherwise every empty square. */
+  private int[] moves(int toMove){
+    if(cm != null)
+      return cm.moves(toMove);
+    int[] m = new int[dim*dim];
+    int n = 0;
+    for(int i = 0; i < dim; i++)
+      for(int j = 0; j < dim; j++)
+        if(board[i][j] == 0)
+          m[n++] = i*dim + j;
+    return Arrays.copyOf(m, n);
+  }
+
+  /** Makes a move, searches the resulting position and takes the move back.
+  * @param i The row of the move.
+  * @param j The column of the move.
+  * @param pl The player making the move.
+  * @param d The remaining depth including this move.
+  * @param alpha Lower bound for the value of the position after the move, from the point of view of the opponent.
+  * @param beta Upper bound, from the point of view of the opponent.
+  * @return The value of the position after the move from the point of view of the opponent of pl.
+  */
+  private double search(int i, int j, int pl, int d, double alpha, double beta){
+    board[i][j] = pl;
+    if(acc != null)
+      acc.play(i, j, pl);
+    if(cm != null)
+      cm.play(i, j, pl);
+    double v;
+
+    int r = TicTacToe.checkVictory(new int[]{i, j}, inARow, board);
+    if(r == 1)
+      v = -1.0;
+    else if(r == 0)
+      v = 0.0;
+    else if(d <= 1){
+      v = (acc != null) ? acc.evaluate() : nn.evaluate(board);
+      evaluations++;
+    } else {
+      v = Double.NEGATIVE_INFINITY;
+      int opp = pl % 2 + 1;
+      for(int sq : moves(opp)){
+        v = Math.max(v, -search(sq / dim, sq % dim, opp, d-1, -beta, -Math.max(alpha, v)));
+        if(v >= beta)
+          break;
+      }
+    }
+
+    if(cm != null)
+      cm.undo();
+    if(acc != null)
+      acc.undo();
+    board[i][j] = 0;
+    return v;
+  }
+}
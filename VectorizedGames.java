@@ -0,0 +1,177 @@
+import java.util.ArrayList;
+
+/** Plays several games of tic-tac-toe in lockstep. On every step, the boards of all the games where a neural network player is to move are gathered into one batch and evaluated with a single call to NeuralNetwork.feedForwardBatch(), instead of one feedForward() per move. Finished games are recorded and their slots reused for new games until enough games have been played.
+*/
+public class VectorizedGames{
+
+  /** The games being played. The slots share the players of the template game. */
+  TicTacToe[] slots;
+  /** The players, shared by all the slots. */
+  Player player1, player2;
+
+  /** The candidate moves of each slot and player, indexed by slot and player 0 or 1, or null if the player has none. Each slot needs its own, since CandidateMoves follows a single board incrementally, @see Player#candidates */
+  CandidateMoves[][] candidates;
+
+  /** Per slot records of the game in progress, as in TicTacToe.recordedPlay(). */
+  ArrayList<ArrayList<double[]>> bStates = new ArrayList<ArrayList<double[]>>();
+  ArrayList<ArrayList<int[]>> moves = new ArrayList<ArrayList<int[]>>();
+  ArrayList<ArrayList<Integer>> playingAs = new ArrayList<ArrayList<Integer>>();
+
+  /** Constructor.
+  * @param game The game whose parameters and players are used in every slot.
+  * @param numSlots How many games are played in lockstep.
+  */
+  public VectorizedGames(TicTacToe game, int numSlots){
+    player1 = game.player1;
+    player2 = game.player2;
+    slots = new TicTacToe[numSlots];
+    candidates = new CandidateMoves[numSlots][2];
+    for(int k = 0; k < numSlots; k++){
+      for(int pl = 0; pl < 2; pl++){
+        CandidateMoves c = ((pl == 0) ? player1 : player2).candidates;
+        if(c != null)
+          candidates[k][pl] = new CandidateMoves(c.dim, c.inARow, c.radius);
+      }
+      slots[k] = new TicTacToe(game.dim, game.inARow, "Random", "Random");
+      slots[k].player1 = player1;
+      slots[k].player2 = player2;
+      bStates.add(new ArrayList<double[]>());
+      moves.add(new ArrayList<int[]>());
+      playingAs.add(new ArrayList<Integer>());
+    }
+  }
+
+  /** Plays and records a batch of games, @see NNTrainer#playBatch()
+  * @param batchSize The number of games to record.
+  * @param drawMod The modifier of drawn games, draws are skipped if this is 0.0.
+  * @return The recorded games.
+  */
+  public ArrayList<GameRecord> playBatch(int batchSize, double drawMod){
+    ArrayList<GameRecord> gameRecords = new ArrayList<GameRecord>();
+    boolean[] active = new boolean[slots.length];
+    int numActive = 0;
+    for(int k = 0; k < slots.length; k++){
+      startGame(k);
+      active[k] = true;
+      numActive++;
+    }
+
+    int[] nnSlots = new int[slots.length];
+    int[][] m = new int[slots.length][];
+
+    while(numActive > 0){
+      // collect the slots where a neural network is to move, other players move right away
+      int n = 0;
+      for(int k = 0; k < slots.length; k++){
+        if(!active[k])
+          continue;
+        Player temp = (slots[k].turnsPassed % 2 == 0) ? player1 : player2;
+        // book moves are played right away, @see OpeningBook
+        if(temp.isNN() && temp.book != null && (m[k] = temp.book.lookup(slots[k].board)) != null)
+          continue;
+        if(temp.isNN())
+          nnSlots[n++] = k;
+        else
+          m[k] = temp.move(slots[k].board);
+      }
+
+      // evaluate all the neural network moves with a single forward pass per network
+      if(n > 0)
+        nnMoves(nnSlots, n, m);
+
+      for(int k = 0; k < slots.length; k++){
+        if(!active[k])
+          continue;
+        int vic = makeMove(k, m[k]);
+        if(vic < 0)
+          continue;
+
+        int outcome = (vic == 1) ? (slots[k].turnsPassed + 1) % 2 + 1 : 0;
+        if(outcome != 0 || drawMod != 0.0)
+          gameRecords.add(new GameRecord(moves.get(k), bStates.get(k), playingAs.get(k), outcome));
+
+        // recycle the slot if more games are still needed
+        if(gameRecords.size() + numActive - 1 < batchSize)
+          startGame(k);
+        else {
+          active[k] = false;
+          numActive--;
+        }
+      }
+    }
+    return gameRecords;
+  }
+
+  /** Computes the moves of the neural network players in the given slots. The slots are grouped by the player to move since the players may have different networks.
+  * @param nnSlots The slots where a neural network is to move.
+  * @param n The number of such slots.
+  * @param m The array where the moves are stored, indexed by slot.
+  */
+  private void nnMoves(int[] nnSlots, int n, int[][] m){
+    for(int pl = 0; pl < 2; pl++){
+      Player temp = (pl == 0) ? player1 : player2;
+      if(!temp.isNN())
+        continue;
+
+      int count = 0;
+      for(int r = 0; r < n; r++)
+        if(slots[nnSlots[r]].turnsPassed % 2 == pl)
+          count++;
+      if(count == 0)
+        continue;
+
+      int[][][] boards = new int[count][][];
+      double[][] inputs = new double[count][];
+      int[] idx = new int[count];
+      count = 0;
+      for(int r = 0; r < n; r++){
+        TicTacToe s = slots[nnSlots[r]];
+        if(s.turnsPassed % 2 != pl)
+          continue;
+        // make sure the neural network AI gets the board in the right format
+        boards[count] = (pl == 1) ? s.invertBoard() : s.board;
+        inputs[count] = NeuralNetwork.formatInput(boards[count]);
+        idx[count++] = nnSlots[r];
+      }
+
+      double[][] outputs = temp.nn.feedForwardBatch(inputs);
+      for(int r = 0; r < count; r++){
+        Player.maskIllegal(outputs[r], boards[r]);
+        Player.maskCandidates(outputs[r], boards[r], candidates[idx[r]][pl]);
+        m[idx[r]] = temp.nnSample(outputs[r], boards[r].length);
+      }
+    }
+  }
+
+  /** Clears a slot for a new game.
+  * @param k The slot.
+  */
+  private void startGame(int k){
+    slots[k].resetBoard();
+    bStates.get(k).clear();
+    moves.get(k).clear();
+    playingAs.get(k).clear();
+  }
+
+  /** Records and makes a move in a slot, @see TicTacToe#recordedPlay()
+  * @param k The slot.
+  * @param m The move.
+  * @return The result of TicTacToe.checkVictory() after the move.
+  */
+  private int makeMove(int k, int[] m){
+    TicTacToe s = slots[k];
+    int pl = s.turnsPassed % 2;
+
+    // record the game states - for player 2 invert the board so that the neural network sees itself always as the player with X's
+    if(pl == 0)
+      bStates.get(k).add(NeuralNetwork.formatInput(s.board));
+    if(pl == 1)
+      bStates.get(k).add(NeuralNetwork.formatInput(s.invertBoard()));
+    moves.get(k).add(new int[]{m[0], m[1]});
+    playingAs.get(k).add(pl+1);
+
+    s.board[m[0]][m[1]] = pl+1;
+    s.turnsPassed++;
+    return s.checkVictory(m);
+  }
+}
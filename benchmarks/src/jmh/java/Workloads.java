@@ -0,0 +1,173 @@
+import java.io.File;
+import java.util.SplittableRandom;
+import bench.Workload;
+
+/** The workloads of the benchmarks in the package bench. They live in the default package so that they can call the engine classes directly.
+*
+*    The inputs are generated with a fixed seed, so every run measures the same positions.
+*/
+public class Workloads{
+
+  /** Seed of the random positions. */
+  static final long SEED = 0x5eed;
+
+  /** The layer structure used by the benchmarks: the board, two hidden layers and the output. */
+  static int[] layers(int dim, int width){
+    return new int[]{dim*dim, width, width, dim*dim};
+  }
+
+  /** Generates boards from random games stopped halfway, with the marks of both players alternating like in a real game.
+  * @param dim The dimension of the board.
+  * @param n The number of boards.
+  */
+  static int[][][] boards(int dim, int n){
+    SplittableRandom rnd = new SplittableRandom(SEED);
+    int[][][] b = new int[n][dim][dim];
+    for(int k = 0; k < n; k++)
+      for(int m = 0; m < dim*dim/2; m++){
+        int i, j;
+        do{ i = rnd.nextInt(dim); j = rnd.nextInt(dim); } while(b[k][i][j] != 0);
+        b[k][i][j] = m % 2 + 1;
+      }
+    return b;
+  }
+
+  /** Number of different positions cycled through by the workloads, so that branch prediction cannot learn a single position. */
+  static final int POSITIONS = 64;
+
+  /** NeuralNetwork.feedForward() on a half full board. */
+  public static class FeedForward implements Workload{
+    NeuralNetwork nn;
+    double[][] inputs;
+    int next = 0;
+
+    public void setUp(int dim, int width){
+      nn = new NeuralNetwork(layers(dim, width));
+      int[][][] b = boards(dim, POSITIONS);
+      inputs = new double[POSITIONS][];
+      for(int k = 0; k < POSITIONS; k++)
+        inputs[k] = NeuralNetwork.formatInput(b[k]);
+    }
+
+    public Object run(){
+      next = (next + 1) % POSITIONS;
+      return nn.feedForward(inputs[next]);
+    }
+  }
+
+  /** NeuralNetwork.getGradient() for one position and move, including the forward pass. */
+  public static class GetGradient extends FeedForward{
+    public Object run(){
+      next = (next + 1) % POSITIONS;
+      return nn.getGradient(inputs[next], next % inputs[next].length);
+    }
+  }
+
+  /** NeuralNetwork.gradientStep() with a gradient of the whole network. The learning rate is tiny so that the weights stay put. */
+  public static class GradientStep implements Workload{
+    NeuralNetwork nn;
+    Gradient g;
+
+    public void setUp(int dim, int width){
+      nn = new NeuralNetwork(layers(dim, width));
+      g = nn.getGradient(NeuralNetwork.formatInput(boards(dim, 1)[0]), 0);
+    }
+
+    public Object run(){
+      nn.gradientStep(g, 1e-12, 1);
+      return nn;
+    }
+  }
+
+  /** Gradient.addToGradient(), the accumulation of a batch in NNTrainer. */
+  public static class AddToGradient implements Workload{
+    Gradient sum, g;
+
+    public void setUp(int dim, int width){
+      NeuralNetwork nn = new NeuralNetwork(layers(dim, width));
+      sum = nn.initializeGradient();
+      g = nn.getGradient(NeuralNetwork.formatInput(boards(dim, 1)[0]), 0);
+    }
+
+    public Object run(){
+      sum.addToGradient(g, 1.0);
+      return sum;
+    }
+  }
+
+  /** TicTacToe.checkVictory() for the marks of half full boards, with the same target length as NNTrainer uses. */
+  public static class CheckVictory implements Workload{
+    int[][][] b;
+    int[][] moves;
+    int inARow, next = 0;
+
+    public void setUp(int dim, int width){
+      inARow = Math.min(dim, 5);
+      b = boards(dim, POSITIONS);
+      moves = new int[POSITIONS][];
+      for(int k = 0; k < POSITIONS; k++)
+        for(int i = 0; i < dim; i++)
+          for(int j = 0; j < dim; j++)
+            if(b[k][i][j] != 0)
+              moves[k] = new int[]{i, j};
+    }
+
+    public Object run(){
+      next = (next + 1) % POSITIONS;
+      return TicTacToe.checkVictory(moves[next], inARow, b[next]);
+    }
+  }
+
+  /** TicTacToe.recordedPlay() of a network against a random player, a game of the training loop. */
+  public static class RecordedPlay implements Workload{
+    TicTacToe game;
+
+    public void setUp(int dim, int width){
+      game = new TicTacToe(dim, Math.min(dim, 5), "Neural network", "Random");
+      game.player1.nn = new NeuralNetwork(layers(dim, width));
+    }
+
+    public Object run(){
+      return game.recordedPlay();
+    }
+  }
+
+  /** NeuralNetwork.saveToFile() followed by loadFromFile() through a temporary file. */
+  public static class SaveAndLoad implements Workload{
+    NeuralNetwork nn;
+    String file;
+
+    public void setUp(int dim, int width) throws Exception{
+      nn = new NeuralNetwork(layers(dim, width));
+      File f = File.createTempFile("weights", ".txt");
+      f.deleteOnExit();
+      file = f.getPath();
+    }
+
+    public Object run(){
+      nn.saveToFile(file);
+      nn.loadFromFile(file);
+      return nn;
+    }
+  }
+
+  /** Player.minmaxMove() on a board with one mark. */
+  public static class MinmaxMove implements Workload{
+    Player player;
+    int[][][] b;
+    int next = 0;
+
+    public void setUp(int dim, int width){
+      player = new Player("Minmax");
+      player.initializeMM(dim, 2);
+      b = new int[dim*dim][dim][dim];
+      for(int k = 0; k < dim*dim; k++)
+        b[k][k / dim][k % dim] = 1;
+    }
+
+    public Object run(){
+      next = (next + 1) % b.length;
+      return player.minmaxMove(b[next]);
+    }
+  }
+}
@@ -0,0 +1,59 @@
+package bench;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+/** Throughput of the hot paths of training and play across board sizes and hidden layer widths.
+*
+*    The score of feedForward and getGradient is positions per second, the score of recordedPlay is games per second. The networks have two hidden layers of the given width.
+*/
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class EngineBenchmark{
+
+  @Param({"3", "5", "10"})
+  int dim;
+
+  @Param({"20", "128"})
+  int width;
+
+  Workload feedForward, getGradient, gradientStep, addToGradient, checkVictory, recordedPlay, saveAndLoad;
+
+  @Setup
+  public void setUp() throws Exception{
+    feedForward = Workload.create("Workloads$FeedForward", dim, width);
+    getGradient = Workload.create("Workloads$GetGradient", dim, width);
+    gradientStep = Workload.create("Workloads$GradientStep", dim, width);
+    addToGradient = Workload.create("Workloads$AddToGradient", dim, width);
+    checkVictory = Workload.create("Workloads$CheckVictory", dim, width);
+    recordedPlay = Workload.create("Workloads$RecordedPlay", dim, width);
+    saveAndLoad = Workload.create("Workloads$SaveAndLoad", dim, width);
+  }
+
+  @Benchmark
+  public Object feedForward() throws Exception{ return feedForward.run(); }
+
+  @Benchmark
+  public Object getGradient() throws Exception{ return getGradient.run(); }
+
+  @Benchmark
+  public Object gradientStep() throws Exception{ return gradientStep.run(); }
+
+  @Benchmark
+  public Object addToGradient() throws Exception{ return addToGradient.run(); }
+
+  @Benchmark
+  public Object checkVictory() throws Exception{ return checkVictory.run(); }
+
+  @Benchmark
+  public Object recordedPlay() throws Exception{ return recordedPlay.run(); }
+
+  @Benchmark
+  @BenchmarkMode(Mode.AverageTime)
+  @OutputTimeUnit(TimeUnit.MILLISECONDS)
+  public Object saveAndLoad() throws Exception{ return saveAndLoad.run(); }
+}
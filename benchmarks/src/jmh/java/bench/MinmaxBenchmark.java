@@ -0,0 +1,27 @@
+package bench;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+/** Time of a minmax move on a 3x3 board. Larger boards are out of reach of the full game tree search.
+*
+*    The minmax player moves randomly on an empty board, so the move is searched after the first mark has been placed.
+*/
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MinmaxBenchmark{
+
+  Workload minmaxMove;
+
+  @Setup
+  public void setUp() throws Exception{
+    minmaxMove = Workload.create("Workloads$MinmaxMove", 3, 0);
+  }
+
+  @Benchmark
+  public Object minmaxMove() throws Exception{ return minmaxMove.run(); }
+}
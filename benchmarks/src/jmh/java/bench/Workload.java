@@ -0,0 +1,28 @@
+package bench;
+
+/** A piece of engine code measured by a benchmark.
+*
+*    JMH does not accept benchmark classes in the default package, and classes in a named package cannot refer to the engine classes, which are in the default package. The benchmarks therefore go through this interface, and the implementations in the default package (@see Workloads) call the engine directly. Each benchmark runs in its own fork, so the interface call has a single target and is inlined.
+*/
+public interface Workload{
+
+  /** Builds the inputs of the workload outside the measured code.
+  * @param dim The dimension of the game board.
+  * @param width The number of neurons in each hidden layer.
+  */
+  void setUp(int dim, int width) throws Exception;
+
+  /** Runs the measured code once.
+  * @return A result that is handed to the blackhole so that the work is not optimized away.
+  */
+  Object run() throws Exception;
+
+  /** Creates and sets up a workload by the name of its class.
+  * @param name The binary name of the class, such as "Workloads$FeedForward".
+  */
+  static Workload create(String name, int dim, int width) throws Exception{
+    Workload w = (Workload) Class.forName(name).getDeclaredConstructor().newInstance();
+    w.setUp(dim, width);
+    return w;
+  }
+}